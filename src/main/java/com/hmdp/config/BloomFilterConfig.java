@@ -0,0 +1,54 @@
+package com.hmdp.config;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import com.hmdp.mapper.BlogMapper;
+import com.hmdp.mapper.ShopMapper;
+import com.hmdp.mapper.UserMapper;
+import com.hmdp.utils.RedisBloomFilter;
+import com.hmdp.utils.RedisConstants;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+@Configuration
+public class BloomFilterConfig {
+
+    // 可接受的误判率
+    private static final double FPP = 0.01;
+    // 全量重建时每批从数据库读取的 id 个数
+    private static final int ID_BATCH_SIZE = 1000;
+
+    @Bean
+    public RedisBloomFilter shopBloomFilter(ShopMapper shopMapper, StringRedisTemplate stringRedisTemplate) {
+        return new RedisBloomFilter(RedisConstants.BLOOM_SHOP_KEY, 100_000, FPP,
+                stringRedisTemplate, lastId -> selectIds(shopMapper, lastId));
+    }
+
+    @Bean
+    public RedisBloomFilter userBloomFilter(UserMapper userMapper, StringRedisTemplate stringRedisTemplate) {
+        return new RedisBloomFilter(RedisConstants.BLOOM_USER_KEY, 1_000_000, FPP,
+                stringRedisTemplate, lastId -> selectIds(userMapper, lastId));
+    }
+
+    @Bean
+    public RedisBloomFilter blogBloomFilter(BlogMapper blogMapper, StringRedisTemplate stringRedisTemplate) {
+        return new RedisBloomFilter(RedisConstants.BLOOM_BLOG_KEY, 1_000_000, FPP,
+                stringRedisTemplate, lastId -> selectIds(blogMapper, lastId));
+    }
+
+    // select id from tb_xxx where id > lastId order by id limit 1000
+    // 按主键分批读取，不用 offset，越往后也不会变慢
+    private static <T> List<Long> selectIds(BaseMapper<T> mapper, Long lastId) {
+        List<Object> ids = mapper.selectObjs(new QueryWrapper<T>()
+                .select("id")
+                .gt("id", lastId)
+                .orderByAsc("id")
+                .last("limit " + ID_BATCH_SIZE));
+        // id 是 bigint unsigned，驱动返回的可能是 BigInteger
+        return ids.stream().map(id -> ((Number) id).longValue()).collect(Collectors.toList());
+    }
+}
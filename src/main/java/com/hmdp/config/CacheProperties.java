@@ -0,0 +1,69 @@
+package com.hmdp.config;
+
+import com.hmdp.utils.CacheFormat;
+import com.hmdp.utils.CacheMode;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * 各类缓存的配置  对应 application.yaml 中的 hmdp.cache
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp.cache")
+public class CacheProperties {
+
+    private Spec shop = new Spec();
+    private Spec user = new Spec();
+    private Spec blog = new Spec();
+    private WarmUp warmUp = new WarmUp();
+
+    @Data
+    public static class Spec {
+        /**
+         * 未命中或过期时的处理方式
+         */
+        private CacheMode mode = CacheMode.MUTEX;
+        /**
+         * 写入 Redis 的编码，读取时两种格式都能识别
+         */
+        private CacheFormat codec = CacheFormat.JSON;
+        /**
+         * TTL 随机延长的比例，0 表示不随机
+         */
+        private double ttlJitter = 0;
+        /**
+         * 快过期时概率性提前刷新的系数，0 表示不开启
+         */
+        private double earlyRefreshBeta = 0;
+        /**
+         * 最近 10 秒内访问次数达到多少算热点 key，热点 key 放进本地缓存，0 表示不探测
+         */
+        private int hotKeyThreshold = 0;
+    }
+
+    @Data
+    public static class WarmUp {
+        /**
+         * 是否在启动时预热缓存
+         */
+        private boolean enabled = false;
+        /**
+         * 写 Redis 的线程数
+         */
+        private int threads = 4;
+        /**
+         * 每个管道写入多少个店铺
+         */
+        private int batchSize = 500;
+        /**
+         * 预热完成多少比例后才开始接收请求，之前的请求返回 503，剩下的在后台继续
+         */
+        private double readyFraction = 0.8;
+        /**
+         * 等待预热的最长时间  超时后开始接收请求，预热在后台继续
+         */
+        private long readyTimeoutSeconds = 120;
+    }
+}
@@ -0,0 +1,23 @@
+package com.hmdp.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * 全局唯一 ID 的配置  对应 application.yaml 中的 hmdp.id
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp.id")
+public class IdProperties {
+
+    /**
+     * ID 生成方式  redis: 时间戳 + Redis 自增序列号  snowflake: 雪花算法，机器号从 Redis 租用
+     */
+    private String strategy = "redis";
+    /**
+     * 每次从 Redis 预留多少个序列号，在本地依次分配  1 表示每个 ID 都 INCR 一次
+     */
+    private int segmentSize = 1000;
+}
@@ -1,7 +1,10 @@
 package com.hmdp.config;
 
+import com.hmdp.utils.CacheMetrics;
+import com.hmdp.utils.CacheWarmUp;
 import com.hmdp.utils.LoginInterceptor;
 import com.hmdp.utils.RefreshTokenInterceptor;
+import com.hmdp.utils.WarmUpInterceptor;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
@@ -15,6 +18,12 @@ public class MvcConfig implements WebMvcConfigurer  {
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private CacheMetrics cacheMetrics;
+
+    @Resource
+    private CacheWarmUp cacheWarmUp;
+
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
         // 登录拦截器  拦截部分请求
@@ -28,11 +37,20 @@ public class MvcConfig implements WebMvcConfigurer  {
                         "/upload/**",
                         "/voucher/**"
                 ).order(1);
+        // 补充秒杀库存会修改库存、清除售罄标记，必须登录  上面排除了 /voucher/**，单独再拦截一次
+        registry.addInterceptor(new LoginInterceptor())
+                .addPathPatterns("/voucher/seckill/*/stock")
+                .order(1);
         // Token刷新拦截器  拦截所有请求
         // order 值越小 先执行
-        registry.addInterceptor(new RefreshTokenInterceptor(stringRedisTemplate))
+        registry.addInterceptor(new RefreshTokenInterceptor(stringRedisTemplate, cacheMetrics))
                 .addPathPatterns("/**")
                 .order(0);
+        // 预热拦截器  预热完成前拒绝除预热进度以外的所有请求，最先执行
+        registry.addInterceptor(new WarmUpInterceptor(cacheWarmUp))
+                .addPathPatterns("/**")
+                .excludePathPatterns("/cache/warm-up")
+                .order(-1);
 
     }
 }
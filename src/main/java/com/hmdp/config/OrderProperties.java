@@ -0,0 +1,35 @@
+package com.hmdp.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * 异步下单的配置  对应 application.yaml 中的 hmdp.order
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp.order")
+public class OrderProperties {
+
+    /**
+     * 消费 stream.orders 的线程数  每个线程是消费者组里的一个消费者
+     */
+    private int consumerThreads = 4;
+    /**
+     * 每次 XREADGROUP 最多读取的消息数，同一批订单在一个事务里写入
+     */
+    private int batchSize = 100;
+    /**
+     * 没有消息时 XREADGROUP 阻塞等待的时间
+     */
+    private long blockMillis = 2000;
+    /**
+     * pending 消息空闲多久后由其他消费者接管  要比处理一批订单的最长耗时长
+     */
+    private long claimIdleMillis = 60000;
+    /**
+     * 新建秒杀券时库存拆成几个分片  1 表示不分片，库存是一个 key
+     */
+    private int stockShards = 1;
+}
@@ -1,19 +1,16 @@
 package com.hmdp.controller;
 
 
-import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.Blog;
 import com.hmdp.entity.User;
 import com.hmdp.service.IBlogService;
 import com.hmdp.service.IUserService;
-import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
-import java.util.List;
 
 /**
  * <p>
@@ -41,21 +38,26 @@ public class BlogController {
         return blogService.likeBlog(id);
     }
 
+    /**
+     * 分页查询自己的笔记  传了 lastId（上一页最后一篇笔记的 id）就从它之后开始查，忽略页码
+     */
     @GetMapping("/of/me")
-    public Result queryMyBlog(@RequestParam(value = "current", defaultValue = "1") Integer current) {
+    public Result queryMyBlog(@RequestParam(value = "current", defaultValue = "1") Integer current,
+                              @RequestParam(value = "lastId", required = false) Long lastId) {
         // 获取登录用户
         UserDTO user = UserHolder.getUser();
         // 根据用户查询
-        Page<Blog> page = blogService.query()
-                .eq("user_id", user.getId()).page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
-        // 获取当前页数据
-        List<Blog> records = page.getRecords();
-        return Result.ok(records);
+        return blogService.queryBlogOfUser(user.getId(), current, lastId);
     }
 
+    /**
+     * 分页查询热门笔记  传了 lastLiked、lastId（上一页最后一篇笔记的点赞数和 id）就从它之后开始查，忽略页码
+     */
     @GetMapping("/hot")
-    public Result queryHotBlog(@RequestParam(value = "current", defaultValue = "1") Integer current) {
-        return blogService.queryHotBlog(current);
+    public Result queryHotBlog(@RequestParam(value = "current", defaultValue = "1") Integer current,
+                               @RequestParam(value = "lastLiked", required = false) Integer lastLiked,
+                               @RequestParam(value = "lastId", required = false) Long lastId) {
+        return blogService.queryHotBlog(current, lastLiked, lastId);
     }
 
     @GetMapping("/{id}")
@@ -70,12 +72,10 @@ public class BlogController {
     }
 
     @GetMapping("/of/user")
-    public Result queryBlogByUserId(@RequestParam(value = "current", defaultValue = "1") Integer current, @RequestParam("id") Long id) {
+    public Result queryBlogByUserId(@RequestParam(value = "current", defaultValue = "1") Integer current, @RequestParam("id") Long id,
+                                    @RequestParam(value = "lastId", required = false) Long lastId) {
         // 根据用户查询 blog
-        Page<Blog> page = blogService.query()
-                .eq("user_id", id).page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
-
-        return Result.ok(page.getRecords());
+        return blogService.queryBlogOfUser(id, current, lastId);
     }
 
     @GetMapping("/of/follow")
@@ -0,0 +1,92 @@
+package com.hmdp.controller;
+
+
+import com.hmdp.dto.Result;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheMetrics;
+import com.hmdp.utils.CacheWarmUp;
+import com.hmdp.utils.ShopGeoSync;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+
+/**
+ * <p>
+ * 缓存监控
+ * </p>
+ */
+@RestController
+@RequestMapping("/cache")
+public class CacheController {
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private CacheWarmUp cacheWarmUp;
+
+    @Resource
+    private CacheMetrics cacheMetrics;
+
+    @Resource
+    private ShopGeoSync shopGeoSync;
+
+    /**
+     * 查询各类缓存在本地缓存、Redis 两级的命中统计
+     * @return 按 key 前缀分组的统计数据
+     */
+    @GetMapping("/stats")
+    public Result queryCacheStats() {
+        return Result.ok(cacheClient.stats());
+    }
+
+    /**
+     * 查询各个 key 前缀的缓存指标：命中率、空值命中、查库耗时直方图、序列化后的大小
+     * @return 按 key 前缀分组的指标，当前实例启动以来的累计值
+     */
+    @GetMapping("/metrics")
+    public Result queryCacheMetrics() {
+        return Result.ok(cacheMetrics.snapshot());
+    }
+
+    /**
+     * 查询当前的热点 key
+     * @return 按 key 前缀分组，每组按最近 10 秒的访问次数从高到低排列
+     */
+    @GetMapping("/hot-keys")
+    public Result queryHotKeys() {
+        return Result.ok(cacheClient.hotKeys());
+    }
+
+    /**
+     * 查询启动预热的进度
+     */
+    @GetMapping("/warm-up")
+    public Result queryWarmUp() {
+        return Result.ok(cacheWarmUp.status());
+    }
+
+    /**
+     * 在后台从数据库全量重建店铺坐标 shop:geo:类型id  平时每天凌晨自动执行
+     * @return 重建状态，完成后通过 GET /cache/shop-geo/rebuild 查询结果
+     */
+    @PostMapping("/shop-geo/rebuild")
+    public Result rebuildShopGeo() {
+        if (!shopGeoSync.rebuildAsync()) {
+            return Result.fail("正在重建中，请稍后再试");
+        }
+        return Result.ok(shopGeoSync.rebuildStatus());
+    }
+
+    /**
+     * 查询最近一次手动重建店铺坐标的状态
+     * @return 状态、重建的类型数、店铺数、耗时
+     */
+    @GetMapping("/shop-geo/rebuild")
+    public Result queryShopGeoRebuild() {
+        return Result.ok(shopGeoSync.rebuildStatus());
+    }
+}
@@ -1,15 +1,13 @@
 package com.hmdp.controller;
 
 
-import cn.hutool.core.util.StrUtil;
-import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.service.IShopService;
-import com.hmdp.utils.SystemConstants;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
+import java.util.List;
 
 /**
  * <p>
@@ -36,6 +34,16 @@ public class ShopController {
         return shopService.queryById(id);
     }
 
+    /**
+     * 根据id批量查询商铺信息
+     * @param ids 商铺id，多个用逗号隔开
+     * @return 商铺详情数据，按传入的顺序排列，不存在的店铺不返回
+     */
+    @GetMapping("/batch")
+    public Result queryShopByIds(@RequestParam("ids") List<Long> ids) {
+        return shopService.queryByIds(ids);
+    }
+
     /**
      * 新增商铺信息
      * @param shop 商铺数据
@@ -43,10 +51,8 @@ public class ShopController {
      */
     @PostMapping
     public Result saveShop(@RequestBody Shop shop) {
-        // 写入数据库
-        shopService.save(shop);
-        // 返回店铺id
-        return Result.ok(shop.getId());
+        // 写入数据库 返回店铺id
+        return shopService.saveShop(shop);
     }
 
     /**
@@ -64,6 +70,7 @@ public class ShopController {
      * 根据商铺类型分页查询商铺信息
      * @param typeId 商铺类型
      * @param current 页码
+     * @param lastId 不按坐标查询时的游标，上一页最后一个商铺的 id，传了就忽略页码
      * @return 商铺列表
      */
     @GetMapping("/of/type")
@@ -71,9 +78,28 @@ public class ShopController {
             @RequestParam("typeId") Integer typeId,
             @RequestParam(value = "current", defaultValue = "1") Integer current,
             @RequestParam(value = "x", required = false) Double x,
-            @RequestParam(value = "y", required = false) Double y
+            @RequestParam(value = "y", required = false) Double y,
+            @RequestParam(value = "lastId", required = false) Long lastId
+    ) {
+        return shopService.queryShopByType(typeId, current, x, y, lastId);
+    }
+
+    /**
+     * 按距离滚动查询附近的商铺  下一页从上一页最后一个商铺之后开始，每页的开销和翻了多少页无关
+     * @param typeId 商铺类型
+     * @param lastDistance 上一页最后一个商铺的距离，查第一页时不传
+     * @param lastId 上一页最后一个商铺的id，查第一页时不传
+     * @return 商铺列表和下一页的游标
+     */
+    @GetMapping("/of/type/scroll")
+    public Result scrollShopByType(
+            @RequestParam("typeId") Integer typeId,
+            @RequestParam("x") Double x,
+            @RequestParam("y") Double y,
+            @RequestParam(value = "lastDistance", required = false) Double lastDistance,
+            @RequestParam(value = "lastId", required = false) Long lastId
     ) {
-        return shopService.queryShopByType(typeId, current, x, y);
+        return shopService.scrollShopByType(typeId, x, y, lastDistance, lastId);
     }
 
     /**
@@ -87,11 +113,7 @@ public class ShopController {
             @RequestParam(value = "name", required = false) String name,
             @RequestParam(value = "current", defaultValue = "1") Integer current
     ) {
-        // 根据类型分页查询
-        Page<Shop> page = shopService.query()
-                .like(StrUtil.isNotBlank(name), "name", name)
-                .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
-        // 返回数据
-        return Result.ok(page.getRecords());
+        // 查内存里的名称索引，按匹配程度、评分、销量排序
+        return shopService.queryShopByName(name, current);
     }
 }
@@ -1,11 +1,9 @@
 package com.hmdp.controller;
 
 
-import cn.hutool.core.bean.BeanUtil;
 import com.hmdp.dto.LoginFormDTO;
 import com.hmdp.dto.Result;
 import com.hmdp.dto.UserDTO;
-import com.hmdp.entity.User;
 import com.hmdp.entity.UserInfo;
 import com.hmdp.service.IUserInfoService;
 import com.hmdp.service.IUserService;
@@ -88,13 +86,7 @@ public class UserController {
     @GetMapping("/{id}")
     public Result queryUserById(@PathVariable("id") Long userId) {
         // 根据 id 查询用户信息，返回 userDTO
-        User user = userService.getById(userId);
-        if (user == null) {
-            return Result.ok();
-        }
-
-        UserDTO userDTO = BeanUtil.copyProperties(user, UserDTO.class);
-        return Result.ok(userDTO);
+        return userService.queryUserById(userId);
     }
 
     @PostMapping("/sign")
@@ -0,0 +1,13 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+public class GeoScrollResult {
+    private List<?> list;
+    // 这一页最后一个店铺的距离和 id  下一页从它后面开始查，没有数据时为 null
+    private Double lastDistance;
+    private Long lastId;
+}
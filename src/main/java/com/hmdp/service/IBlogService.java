@@ -14,7 +14,9 @@ import com.baomidou.mybatisplus.extension.service.IService;
  */
 public interface IBlogService extends IService<Blog> {
 
-    Result queryHotBlog(Integer current);
+    Result queryHotBlog(Integer current, Integer lastLiked, Long lastId);
+
+    Result queryBlogOfUser(Long userId, Integer current, Long lastId);
 
     Result queryBlogById(Long id);
 
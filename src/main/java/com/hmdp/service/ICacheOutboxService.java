@@ -0,0 +1,23 @@
+package com.hmdp.service;
+
+import com.hmdp.entity.CacheOutbox;
+import com.baomidou.mybatisplus.extension.service.IService;
+
+/**
+ * <p>
+ *  服务类
+ * </p>
+ */
+public interface ICacheOutboxService extends IService<CacheOutbox> {
+
+    /**
+     * 在当前事务里登记要删除的缓存 key，事务提交后再删除
+     * 必须在事务里调用，发件箱记录和业务数据一起提交或回滚
+     */
+    void evictAfterCommit(String cacheKey);
+
+    /**
+     * 处理发件箱里积压的记录：删除缓存，成功后删除记录，失败的下次重试
+     */
+    void relay();
+}
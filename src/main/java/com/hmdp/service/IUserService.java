@@ -24,4 +24,6 @@ public interface IUserService extends IService<User> {
     Result sign();
 
     Result signCount();
+
+    Result queryUserById(Long id);
 }
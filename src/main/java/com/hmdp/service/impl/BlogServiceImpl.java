@@ -3,6 +3,7 @@ package com.hmdp.service.impl;
 import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.StrUtil;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
+import com.hmdp.config.CacheProperties;
 import com.hmdp.dto.Result;
 import com.hmdp.dto.ScrollResult;
 import com.hmdp.dto.UserDTO;
@@ -14,6 +15,14 @@ import com.hmdp.service.IBlogService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.service.IFollowService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.BloomFilterManager;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheCodecs;
+import com.hmdp.utils.CacheMetrics;
+import com.hmdp.utils.CacheSpec;
+import com.hmdp.utils.HotKeyDetector;
+import com.hmdp.utils.LocalCache;
+import com.hmdp.utils.RedisBloomFilter;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
@@ -21,11 +30,13 @@ import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.ZSetOperations;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 /**
@@ -48,14 +59,68 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     @Resource
     private IFollowService followService;
 
+    @Resource
+    private RedisBloomFilter blogBloomFilter;
+
+    @Resource
+    private BloomFilterManager bloomFilterManager;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private CacheProperties cacheProperties;
+
+    @Resource
+    private CacheMetrics cacheMetrics;
+
+    private CacheSpec<Long, Blog> blogCache;
+
+    @PostConstruct
+    private void init() {
+        // 笔记缓存：只缓存数据库里的字段，作者信息和是否点赞每次请求单独设置
+        int hotKeyThreshold = cacheProperties.getBlog().getHotKeyThreshold();
+        blogCache = CacheSpec.<Long, Blog>builder()
+                .keyPrefix(RedisConstants.CACHE_BLOG_KEY)
+                .lockKeyPrefix(RedisConstants.LOCK_BLOG_KEY)
+                .codec(CacheCodecs.of(Blog.class, cacheProperties.getBlog().getCodec()))
+                .dbFallback(this::getById)
+                .ttl(RedisConstants.CACHE_BLOG_TTL)
+                .unit(TimeUnit.MINUTES)
+                .mode(cacheProperties.getBlog().getMode())
+                .ttlJitter(cacheProperties.getBlog().getTtlJitter())
+                .earlyRefreshBeta(cacheProperties.getBlog().getEarlyRefreshBeta())
+                .hotKeyDetector(hotKeyThreshold > 0 ? new HotKeyDetector(
+                        RedisConstants.CACHE_HOT_KEY_SLICES, hotKeyThreshold, RedisConstants.CACHE_HOT_KEY_CAPACITY) : null)
+                .hotKeyCache(new LocalCache<>(
+                        RedisConstants.CACHE_BLOG_KEY + "hot",
+                        RedisConstants.CACHE_HOT_KEY_CAPACITY,
+                        TimeUnit.SECONDS.toMillis(RedisConstants.CACHE_HOT_KEY_TTL)))
+                .existenceFilter(blogBloomFilter::mightContain)
+                .build();
+        cacheClient.register(blogCache);
+    }
+
     @Override
-    public Result queryHotBlog(Integer current) {
-        // 根据用户查询
-        Page<Blog> page = query()
-                .orderByDesc("liked")
-                .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
-        // 获取当前页数据
-        List<Blog> records = page.getRecords();
+    public Result queryHotBlog(Integer current, Integer lastLiked, Long lastId) {
+        List<Blog> records;
+        if (lastId == null && current > 1) {
+            // 没有传游标  仍按页码查，但不再查总数
+            Page<Blog> page = query()
+                    .orderByDesc("liked", "id")
+                    .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE, false));
+            records = page.getRecords();
+        } else {
+            // 从上一页最后一篇笔记之后开始查  按 (liked, id) 倒序，走 (liked, id) 索引直接定位
+            // WHERE liked < lastLiked OR (liked = lastLiked AND id < lastId) ORDER BY liked DESC, id DESC LIMIT 10
+            boolean hasCursor = lastId != null && lastLiked != null;
+            records = query()
+                    .and(hasCursor, w -> w.lt("liked", lastLiked)
+                            .or(o -> o.eq("liked", lastLiked).lt("id", lastId)))
+                    .orderByDesc("liked", "id")
+                    .last("LIMIT " + SystemConstants.MAX_PAGE_SIZE)
+                    .list();
+        }
         // 查询用户
         records.forEach(blog -> {
             this.queryBlogUser(blog);  // 设置blog的用户名和头像字段
@@ -64,13 +129,35 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         return Result.ok(records);
     }
 
+    @Override
+    public Result queryBlogOfUser(Long userId, Integer current, Long lastId) {
+        if (lastId == null && current > 1) {
+            // 没有传游标  仍按页码查，但不再查总数
+            Page<Blog> page = query()
+                    .eq("user_id", userId)
+                    .orderByAsc("id")
+                    .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE, false));
+            return Result.ok(page.getRecords());
+        }
+        // 从上一页最后一篇笔记之后开始查  WHERE user_id = ? AND id > lastId ORDER BY id LIMIT 10，走 (user_id, id) 索引
+        List<Blog> blogs = query()
+                .eq("user_id", userId)
+                .gt(lastId != null, "id", lastId)
+                .orderByAsc("id")
+                .last("LIMIT " + SystemConstants.MAX_PAGE_SIZE)
+                .list();
+        return Result.ok(blogs);
+    }
+
     @Override
     public Result queryBlogById(Long id) {
         // 查询 blog
-        Blog blog = getById(id);
-        if (blog == null) {
+        Blog cached = cacheClient.get(blogCache, id);
+        if (cached == null) {
             return Result.fail("笔记不存在");
         }
+        // 热点笔记会被放进本地缓存，多个请求拿到的是同一个对象，复制一份再设置作者和点赞信息
+        Blog blog = BeanUtil.copyProperties(cached, Blog.class);
         // 查询 blog 相关的用户信息
         queryBlogUser(blog);
         // 查询 blog 有没有被当前用户点赞
@@ -88,12 +175,21 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
 
         // 判断当前用户是否已经点赞过
         String key = RedisConstants.BLOG_LIKED_KEY + blog.getId();
-        Double score = stringRedisTemplate.opsForZSet().score(key, user.getId().toString());
+        Double score = likedScore(key, user.getId());
 
         // 如果点过赞，设置 isLike
         blog.setIsLike(score != null);
     }
 
+    // 查询用户的点赞时间，没点赞返回 null
+    // blog:liked 不是缓存，没点赞也是正常结果，不计入命中率，只记录查询次数和耗时
+    private Double likedScore(String key, Long userId) {
+        long begin = System.nanoTime();
+        Double score = stringRedisTemplate.opsForZSet().score(key, userId.toString());
+        cacheMetrics.stats(RedisConstants.BLOG_LIKED_KEY).recordLookup(score != null, System.nanoTime() - begin);
+        return score;
+    }
+
     @Override
     public Result likeBlog(Long id) {
         // 获取当前用户
@@ -101,13 +197,15 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
 
         // 判断当前用户是否已经点赞过
         String key = RedisConstants.BLOG_LIKED_KEY + id;
-        Double score = stringRedisTemplate.opsForZSet().score(key, userId.toString());
+        Double score = likedScore(key, userId);
         if (score == null) {
             // 如果未点赞，可以点赞
             // 数据库点赞数 + 1
             boolean success = update().setSql("liked = liked + 1").eq("id", id).update();
             // 保存用户到 redis 的 set 集合
             if (success) {
+                // 点赞数变了 删除笔记缓存
+                cacheClient.evict(blogCache, id);
                 // 用 zset 代替 set，存入 blog 的点赞用户 和 点赞时的时间戳，按点赞时间戳从小到大排序
                 stringRedisTemplate.opsForZSet().add(key, userId.toString(), System.currentTimeMillis());
             }
@@ -117,6 +215,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             boolean success = update().setSql("liked = liked - 1").eq("id", id).update();
             // 从 redis 的 set 集合里移除用户
             if (success) {
+                cacheClient.evict(blogCache, id);
                 stringRedisTemplate.opsForZSet().remove(key, userId.toString());
             }
         }
@@ -161,6 +260,8 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         if (!success) {
             return Result.fail("新增笔记失败");
         }
+        // 新笔记 id 加入布隆过滤器
+        bloomFilterManager.add(blogBloomFilter, blog.getId());
         // 查询所有粉丝 select * from tb_follow where follow_user_id = ?
         List<Follow> follows = followService.query().eq("follow_user_id", user.getId()).list();
         // 推送笔记 id 给所有粉丝（保存到 zset 收件箱里）
@@ -0,0 +1,114 @@
+package com.hmdp.service.impl;
+
+import com.hmdp.entity.CacheOutbox;
+import com.hmdp.mapper.CacheOutboxMapper;
+import com.hmdp.service.ICacheOutboxService;
+import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.CacheClient;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.Resource;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * <p>
+ *  服务实现类
+ * </p>
+ * 缓存失效发件箱：要删除的缓存 key 和业务数据在同一个事务里写入数据库，事务提交后才删除缓存
+ * 事务回滚时记录也一起回滚，不会误删；提交后 Redis 出问题时记录还在，由 relay 重试，删除不会丢
+ */
+@Slf4j
+@Service
+public class CacheOutboxServiceImpl extends ServiceImpl<CacheOutboxMapper, CacheOutbox> implements ICacheOutboxService {
+
+    // 记录写入多久之后由 relay 处理
+    // 提交后已经立即删过一次，relay 过一会儿再删一次（延迟双删）：
+    // 提交前读到旧数据的请求可能在第一次删除之后才把旧数据写回缓存，第二次删除会把它清掉
+    private static final long RELAY_DELAY_MILLIS = 1000L;
+    private static final int RELAY_BATCH_SIZE = 100;
+    // 删除失败后的退避  第 n 次失败后等 RELAY_DELAY_MILLIS * 2^n，最多等 1 分钟
+    private static final long RELAY_MAX_BACKOFF_MILLIS = 60 * 1000L;
+    // 重试这么多次还没成功  缓存可能一直是旧数据，打 error 日志告警
+    private static final int RELAY_ALERT_RETRIES = 10;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    // 删除失败后，在这个时间之前不再处理  只影响本实例，其他实例读到同样的 retry_count 也会退避
+    private volatile long backoffUntil;
+
+    @Override
+    public void evictAfterCommit(String cacheKey) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            throw new IllegalStateException("evictAfterCommit 必须在事务中调用");
+        }
+        // 1. 写发件箱  和业务数据在同一个事务里
+        save(new CacheOutbox().setCacheKey(cacheKey));
+
+        // 2. 提交后立即删除一次  失败了也没关系，relay 会重试
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                try {
+                    cacheClient.evictAll(Collections.singletonList(cacheKey));
+                } catch (Exception e) {
+                    log.warn("提交后删除缓存失败，等待发件箱重试 key = {}", cacheKey, e);
+                }
+            }
+        });
+    }
+
+    @Override
+    @Scheduled(fixedDelay = RELAY_DELAY_MILLIS)
+    public void relay() {
+        if (System.currentTimeMillis() < backoffUntil) {
+            return;
+        }
+        // 多个实例同时处理同一批记录也没关系  重复删除缓存和记录都是幂等的
+        List<CacheOutbox> batch;
+        do {
+            // 1. 取一批到期的记录  create_time 由 MySQL 写入，截止时间也用 MySQL 的时钟计算，不受应用和数据库时区、时钟偏差影响
+            batch = query()
+                    .apply("create_time <= NOW(3) - INTERVAL " + RELAY_DELAY_MILLIS * 1000 + " MICROSECOND")
+                    .orderByAsc("id")
+                    .last("limit " + RELAY_BATCH_SIZE)
+                    .list();
+            if (batch.isEmpty()) {
+                return;
+            }
+            List<Long> ids = batch.stream().map(CacheOutbox::getId).collect(Collectors.toList());
+            Set<String> keys = batch.stream().map(CacheOutbox::getCacheKey).collect(Collectors.toCollection(LinkedHashSet::new));
+
+            // 2. 批量删除缓存  失败时保留记录，下次再试
+            try {
+                cacheClient.evictAll(keys);
+            } catch (Exception e) {
+                update().setSql("retry_count = retry_count + 1").in("id", ids).update();
+                int retries = batch.stream().mapToInt(CacheOutbox::getRetryCount).max().orElse(0) + 1;
+                long backoff = Math.min(RELAY_DELAY_MILLIS << Math.min(retries, 16), RELAY_MAX_BACKOFF_MILLIS);
+                backoffUntil = System.currentTimeMillis() + backoff;
+                log.warn("发件箱删除缓存失败，{} ms 后重试，共 {} 个 key，最多已重试 {} 次", backoff, keys.size(), retries, e);
+                // 刚好达到阈值的记录告警一次  之后继续按最大间隔重试
+                List<String> stuck = batch.stream()
+                        .filter(outbox -> outbox.getRetryCount() + 1 == RELAY_ALERT_RETRIES)
+                        .map(CacheOutbox::getCacheKey)
+                        .collect(Collectors.toList());
+                if (!stuck.isEmpty()) {
+                    log.error("发件箱删除缓存已连续失败 {} 次，缓存可能一直是旧数据 keys = {}", RELAY_ALERT_RETRIES, stuck);
+                }
+                return;
+            }
+
+            // 3. 删除成功  移除记录
+            removeByIds(ids);
+        } while (batch.size() == RELAY_BATCH_SIZE);
+    }
+}
@@ -1,28 +1,53 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.util.BooleanUtil;
+import cn.hutool.core.util.NumberUtil;
 import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONUtil;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
+import com.hmdp.config.CacheProperties;
+import com.hmdp.dto.GeoScrollResult;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.mapper.ShopMapper;
+import com.hmdp.service.ICacheOutboxService;
 import com.hmdp.service.IShopService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.BloomFilterManager;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheCodecs;
+import com.hmdp.utils.CacheSpec;
+import com.hmdp.utils.HotKeyDetector;
+import com.hmdp.utils.LocalCache;
+import com.hmdp.utils.RedisBloomFilter;
 import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.ShopGeoIndex;
+import com.hmdp.utils.ShopGeoSync;
+import com.hmdp.utils.ShopNameIndex;
 import com.hmdp.utils.SystemConstants;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.data.geo.Distance;
-import org.springframework.data.geo.GeoResult;
-import org.springframework.data.geo.GeoResults;
+import org.springframework.data.redis.connection.DefaultTuple;
 import org.springframework.data.redis.connection.RedisGeoCommands;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
 import org.springframework.data.redis.domain.geo.GeoReference;
+import org.springframework.data.redis.domain.geo.GeoShape;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 /**
  * <p>
@@ -39,117 +64,364 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private CacheProperties cacheProperties;
+
+    @Resource
+    private RedisBloomFilter shopBloomFilter;
+
+    @Resource
+    private BloomFilterManager bloomFilterManager;
+
+    @Resource
+    private ICacheOutboxService cacheOutboxService;
+
+    @Resource
+    private ShopGeoIndex shopGeoIndex;
+
+    @Resource
+    private ShopGeoSync shopGeoSync;
+
+    @Resource
+    private ShopNameIndex shopNameIndex;
+
+    private CacheSpec<Long, Shop> shopCache;
+
+    @PostConstruct
+    private void init() {
+        // 店铺缓存：布隆过滤器 -> 本地缓存 -> Redis -> 数据库
+        int hotKeyThreshold = cacheProperties.getShop().getHotKeyThreshold();
+        shopCache = CacheSpec.<Long, Shop>builder()
+                .keyPrefix(RedisConstants.CACHE_SHOP_KEY)
+                .lockKeyPrefix(RedisConstants.LOCK_SHOP_KEY)
+                .codec(CacheCodecs.of(Shop.class, cacheProperties.getShop().getCodec()))
+                .dbFallback(this::getById)
+                .batchDbFallback(ids -> listByIds(ids).stream()
+                        .collect(Collectors.toMap(Shop::getId, Function.identity())))
+                .ttl(RedisConstants.CACHE_SHOP_TTL)
+                .unit(TimeUnit.MINUTES)
+                .mode(cacheProperties.getShop().getMode())
+                .ttlJitter(cacheProperties.getShop().getTtlJitter())
+                .earlyRefreshBeta(cacheProperties.getShop().getEarlyRefreshBeta())
+                .hotKeyDetector(hotKeyThreshold > 0 ? new HotKeyDetector(
+                        RedisConstants.CACHE_HOT_KEY_SLICES, hotKeyThreshold, RedisConstants.CACHE_HOT_KEY_CAPACITY) : null)
+                .hotKeyCache(new LocalCache<>(
+                        RedisConstants.CACHE_SHOP_KEY + "hot",
+                        RedisConstants.CACHE_HOT_KEY_CAPACITY,
+                        TimeUnit.SECONDS.toMillis(RedisConstants.CACHE_HOT_KEY_TTL)))
+                .localCache(new LocalCache<>(
+                        RedisConstants.CACHE_SHOP_KEY,
+                        RedisConstants.CACHE_SHOP_LOCAL_SIZE,
+                        TimeUnit.SECONDS.toMillis(RedisConstants.CACHE_SHOP_LOCAL_TTL)))
+                .existenceFilter(shopBloomFilter::mightContain)
+                .build();
+        cacheClient.register(shopCache);
+    }
+
     @Override
     public Result queryById(Long id) {
-        // 1. 从 Redis 查询商铺缓存
-        String key = RedisConstants.CACHE_SHOP_KEY + id;
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-
-        // 2. 判断缓存是否命中
-        if (StrUtil.isNotBlank(shopJson)) {
-            // 3. 命中 并且不为空值 直接返回
-            log.debug("命中 shop: {}", shopJson);
-            Shop shop = JSONUtil.toBean(shopJson, Shop.class);
-            return Result.ok(shop);
-        }
-
-        // 上面 isNotBlank 排除了 shopJson 为 null 或 空白字符串("", "  \t\n")
-        // 这里还要判断命中的是否为空值 ""  如果是空值就不去查数据库 直接返回不存在
-        if (shopJson != null) {
-            log.debug("命中空值");
+        Shop shop = cacheClient.get(shopCache, id);
+        if (shop == null) {
             return Result.fail("店铺不存在!");
         }
+        return Result.ok(shop);
+    }
 
-        // 4. 没命中 根据id查数据库
-        Shop shop = getById(id);
-
-        // 5. 数据库里没有 说明商铺不存在 返回错误
-        if (shop == null) {
-            // 将空值写入 Redis
-            stringRedisTemplate.opsForValue().set(key, "", RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
-            log.debug("数据库中不存在，将空值写入Redis");
-            return Result.fail("店铺不存在!");
+    @Override
+    public Result queryByIds(List<Long> ids) {
+        if (ids.size() > SystemConstants.MAX_BATCH_SIZE) {
+            return Result.fail("一次最多查询" + SystemConstants.MAX_BATCH_SIZE + "个店铺!");
         }
+        // 按传入的顺序返回，不存在的店铺直接跳过
+        Map<Long, Shop> shops = cacheClient.getAll(shopCache, ids);
+        return Result.ok(new ArrayList<>(shops.values()));
+    }
 
-        // 6. 数据库里查到了 写缓存 然后返回商铺数据
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(shop), RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
-        log.debug("没命中 查询数据库 shop: {}", shop);
-        return Result.ok(shop);
+    @Override
+    public Result saveShop(Shop shop) {
+        // 写入数据库
+        save(shop);
+        // 新的店铺 id 加入布隆过滤器
+        bloomFilterManager.add(shopBloomFilter, shop.getId());
+        // 写入店铺坐标  新店铺马上就能在附近店铺里查到
+        shopGeoSync.apply(null, shop);
+        // 加入名称索引  并通知其他节点
+        shopNameIndex.put(shop);
+        publishShopChanged(shop.getId());
+        return Result.ok(shop.getId());
+    }
+
+    // 广播店铺新增或修改  其他节点据此更新名称索引
+    private void publishShopChanged(Long shopId) {
+        stringRedisTemplate.convertAndSend(RedisConstants.SHOP_CHANGED_TOPIC, shopId.toString());
     }
 
     @Override
     @Transactional
     public Result update(Shop shop) {
-        // 用事务保证数据库和缓存的操作同时成功或失败
         Long id = shop.getId();
         if (id == null) {
             return Result.fail("店铺id不能为空");
         }
 
-        // 1. 更新数据库
+        // 1. 更新数据库  先查出修改前的类型，换了类型要从原来类型的索引里移除
+        Shop before = getById(id);
+        if (before == null) {
+            return Result.fail("店铺不存在!");
+        }
         updateById(shop);
 
-        // 2. 删缓存
-        stringRedisTemplate.delete(RedisConstants.CACHE_SHOP_KEY + id);
+        // 2. 登记要删除的缓存  和店铺数据在同一个事务里提交，提交后才删除 Redis 和各个实例的本地缓存
+        cacheOutboxService.evictAfterCommit(shopCache.key(id));
+
+        // 3. 提交后更新店铺坐标  传入的 shop 可能只有部分字段，以数据库里的最新数据为准，换了类型的从原来的类型里移除
+        afterCommit(() -> {
+            Shop after = getById(id);
+            if (after != null) {
+                shopGeoSync.apply(before.getTypeId(), after);
+                shopNameIndex.put(after);
+            }
+            publishShopChanged(id);
+        });
 
         return Result.ok();
     }
 
     @Override
-    public Result queryShopByType(Integer typeId, Integer current, Double x, Double y) {
-        // 判断是否要根据坐标来查询
-        if (x == null || y == null) {
-            // 不需要按坐标查询，直接到数据库根据类型分页查询
+    public Result queryShopByName(String name, Integer current) {
+        // 页码从 1 开始
+        current = Math.max(current == null ? 1 : current, 1);
+        int from = (current - 1) * SystemConstants.MAX_PAGE_SIZE;
+        List<Long> ids = shopNameIndex.search(name, from, SystemConstants.MAX_PAGE_SIZE);
+        if (ids == null) {
+            // 索引还没加载好  查数据库
             Page<Shop> page = query()
-                    .eq("type_id", typeId)
+                    .like(StrUtil.isNotBlank(name), "name", name)
                     .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
             return Result.ok(page.getRecords());
         }
+        // 按索引里的顺序从店铺缓存批量取
+        return Result.ok(new ArrayList<>(cacheClient.getAll(shopCache, ids).values()));
+    }
+
+    @Override
+    public Result queryShopByType(Integer typeId, Integer current, Double x, Double y, Long lastId) {
+        // 判断是否要根据坐标来查询
+        if (x == null || y == null) {
+            // 不需要按坐标查询，直接到数据库根据类型按 id 顺序分页查询
+            if (lastId == null && current > 1) {
+                // 没有传游标  仍按页码查，但不再查总数
+                Page<Shop> page = query()
+                        .eq("type_id", typeId)
+                        .orderByAsc("id")
+                        .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE, false));
+                return Result.ok(page.getRecords());
+            }
+            // 从上一页最后一个店铺之后开始查  WHERE type_id = ? AND id > lastId ORDER BY id LIMIT 10
+            // 走 (type_id, id) 索引直接定位，第几页都一样快
+            List<Shop> shops = query()
+                    .eq("type_id", typeId)
+                    .gt(lastId != null, "id", lastId)
+                    .orderByAsc("id")
+                    .last("LIMIT " + SystemConstants.MAX_PAGE_SIZE)
+                    .list();
+            return Result.ok(shops);
+        }
 
         // 计算分页参数
         int from = (current - 1) * SystemConstants.MAX_PAGE_SIZE;
         int end = current * SystemConstants.MAX_PAGE_SIZE;
+        double lng = roundCoordinate(x);
+        double lat = roundCoordinate(y);
 
-        // 查询redis、按距离排序、分页（结果为 shopId、distance）
-        // GEOSEARCH g1 FROMLONLAT 116.397904 39.909005 BYRADIUS 5 km WITHDIST
-        GeoResults<RedisGeoCommands.GeoLocation<String>> results = stringRedisTemplate.opsForGeo().search(
-                RedisConstants.SHOP_GEO_KEY + typeId,
-                GeoReference.fromCoordinate(x, y),
-                new Distance(5000),
-                RedisGeoCommands.GeoSearchCommandArgs.newGeoSearchArgs().includeDistance().limit(end)
-        );
-        if (results == null) {
-            return Result.ok(Collections.emptyList());
+        // 优先查本地索引  只排序这一页，不用把前面的页也排一遍
+        List<ShopGeoIndex.Hit> hits = shopGeoIndex.searchPage(typeId.longValue(), lng, lat,
+                SystemConstants.NEARBY_RADIUS_METERS, from, SystemConstants.MAX_PAGE_SIZE);
+        if (hits != null) {
+            return Result.ok(hits.isEmpty() ? Collections.emptyList() : toShops(hits));
         }
-        // 因为只能返回 0 ~ end 所以需要我们手动截取分页
-        List<GeoResult<RedisGeoCommands.GeoLocation<String>>> list = results.getContent();
-        // 先做个判断，防止截取结果为空
-        if (list.size() <= from) {
+
+        // 索引还没加载好  在 Redis 里按距离排好序的快照中直接按下标取这一页  ZRANGE key from end-1 WITHSCORES
+        // 不用每次都从第一条开始查再跳过前面的页，每页的开销和页码无关
+        String snapshotKey = geoSnapshot(typeId, lng, lat);
+        Set<ZSetOperations.TypedTuple<String>> page = stringRedisTemplate.opsForZSet()
+                .rangeWithScores(snapshotKey, from, end - 1);
+        if (page == null || page.isEmpty()) {
             // 没有下一页了
             return Result.ok(Collections.emptyList());
         }
+        return Result.ok(toShops(toDistances(page)));
+    }
+
+    @Override
+    public Result scrollShopByType(Integer typeId, Double x, Double y, Double lastDistance, Long lastId) {
+        // 两条路径都从取整后的坐标计算距离、距离相同时按 id 从小到大排序  索引加载前后游标可以互相续用
+        double lng = roundCoordinate(x);
+        double lat = roundCoordinate(y);
+
+        // 优先查本地索引  直接从 (lastDistance, lastId) 之后取一页
+        List<ShopGeoIndex.Hit> hits = shopGeoIndex.search(typeId.longValue(), lng, lat,
+                SystemConstants.NEARBY_RADIUS_METERS, lastDistance, lastId, SystemConstants.MAX_PAGE_SIZE);
+        if (hits != null) {
+            GeoScrollResult result = new GeoScrollResult();
+            result.setList(toShops(hits));
+            if (!hits.isEmpty()) {
+                ShopGeoIndex.Hit last = hits.get(hits.size() - 1);
+                result.setLastDistance(last.getDistance());
+                result.setLastId(last.getShopId());
+            }
+            return Result.ok(result);
+        }
+
+        // 索引还没加载好  查 Redis 快照
+        // 从上一页最后一个店铺之后继续查  ZRANGEBYSCORE key lastDistance +inf WITHSCORES LIMIT offset count
+        // 距离相同的店铺在 zset 里按补齐位数的 id 排序，即按 id 从小到大，跳过其中 id 不大于 lastId 的（上一页已经返回过了）
+        String snapshotKey = geoSnapshot(typeId, lng, lat);
+        double min = lastDistance == null ? 0 : lastDistance;
+        String lastMember = lastId == null ? null : snapshotMember(lastId);
+        int pageSize = SystemConstants.MAX_PAGE_SIZE;
+        int fetchSize = pageSize * 2;
+
+        List<ZSetOperations.TypedTuple<String>> page = new ArrayList<>(pageSize);
+        long offset = 0;
+        while (page.size() < pageSize) {
+            Set<ZSetOperations.TypedTuple<String>> batch = stringRedisTemplate.opsForZSet()
+                    .rangeByScoreWithScores(snapshotKey, min, Double.POSITIVE_INFINITY, offset, fetchSize);
+            if (batch == null || batch.isEmpty()) {
+                break;
+            }
+            for (ZSetOperations.TypedTuple<String> tuple : batch) {
+                if (lastMember != null && tuple.getScore() == min && tuple.getValue().compareTo(lastMember) <= 0) {
+                    continue;
+                }
+                page.add(tuple);
+                if (page.size() == pageSize) {
+                    break;
+                }
+            }
+            if (batch.size() < fetchSize) {
+                break;
+            }
+            // 距离相同的店铺特别多，一批里全被跳过了  继续往后取
+            offset += batch.size();
+        }
+
+        GeoScrollResult result = new GeoScrollResult();
+        result.setList(toShops(toDistances(page)));
+        if (!page.isEmpty()) {
+            ZSetOperations.TypedTuple<String> last = page.get(page.size() - 1);
+            result.setLastDistance(last.getScore());
+            result.setLastId(Long.valueOf(last.getValue()));
+        }
+        return Result.ok(result);
+    }
+
+    // 坐标保留 3 位小数（约 100 米）  附近的用户共用同一份快照，本地索引也从这个坐标计算距离
+    private static double roundCoordinate(Double value) {
+        return NumberUtil.round(value, 3).doubleValue();
+    }
+
+    // 快照里的成员  id 补齐到 20 位，zset 里距离相同的成员按字符串排序时就是按 id 从小到大，和本地索引一致
+    private static String snapshotMember(Long shopId) {
+        return String.format("%020d", shopId);
+    }
 
-        // 截取分页
-        List<Long> ids = new ArrayList<>();
-        Map<String, Distance> distanceMap = new HashMap<>();
-        list.stream().skip(from).forEach(result -> {
-            // 获取店铺 id
-            String shopIdStr = result.getContent().getName();
-            ids.add(Long.valueOf(shopIdStr));
+    // 附近店铺快照：以 5km 为半径搜索并按距离排好序，存成 zset，score 为距离（米）
+    // 快照很快过期，新增或移动的店铺最多延迟 SHOP_GEO_SNAPSHOT_TTL 才可见
+    private String geoSnapshot(Integer typeId, double lng, double lat) {
+        String key = RedisConstants.SHOP_GEO_SNAPSHOT_KEY + typeId + ":" + lng + ":" + lat;
+        if (BooleanUtil.isTrue(stringRedisTemplate.hasKey(key))) {
+            return key;
+        }
+        // 1. GEOSEARCHSTORE tmp shop:geo:typeId FROMLONLAT lng lat BYRADIUS 5001 m  不带 STOREDIST，score 是 geohash
+        //    距离不用 Redis 算的，在 Java 里按本地索引的公式重新计算，两条路径的距离完全一致；多搜 1 米，边界上的店铺以 Java 算的为准
+        String tmpKey = key + ":" + UUID.randomUUID().toString(true);
+        byte[] rawTmpKey = tmpKey.getBytes(StandardCharsets.UTF_8);
+        byte[] geoKey = (RedisConstants.SHOP_GEO_KEY + typeId).getBytes(StandardCharsets.UTF_8);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            connection.geoSearchStore(rawTmpKey, geoKey,
+                    GeoReference.fromCoordinate(lng, lat),
+                    GeoShape.byRadius(new Distance(SystemConstants.NEARBY_RADIUS_METERS + 1)),
+                    RedisGeoCommands.GeoSearchStoreCommandArgs.newGeoSearchStoreArgs());
+            connection.expire(rawTmpKey, RedisConstants.SHOP_GEO_SNAPSHOT_TTL);
+            return null;
+        });
+        Set<ZSetOperations.TypedTuple<String>> members = stringRedisTemplate.opsForZSet().rangeWithScores(tmpKey, 0, -1);
+        stringRedisTemplate.delete(tmpKey);
+        if (members == null || members.isEmpty()) {
+            return key;
+        }
 
-            // 获取距离
-            Distance distance = result.getDistance();
-            distanceMap.put(shopIdStr, distance);
+        // 2. 写入快照  和设置有效期放在同一个管道里，避免留下不会过期的快照
+        Set<RedisZSetCommands.Tuple> tuples = new HashSet<>(members.size() * 2);
+        for (ZSetOperations.TypedTuple<String> member : members) {
+            ShopGeoIndex.Hit hit = ShopGeoIndex.hit(Long.parseLong(member.getValue()), lng, lat, member.getScore().longValue());
+            if (hit.getDistance() <= SystemConstants.NEARBY_RADIUS_METERS) {
+                tuples.add(new DefaultTuple(snapshotMember(hit.getShopId()).getBytes(StandardCharsets.UTF_8), hit.getDistance()));
+            }
+        }
+        if (tuples.isEmpty()) {
+            return key;
+        }
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            connection.zAdd(rawKey, tuples);
+            connection.expire(rawKey, RedisConstants.SHOP_GEO_SNAPSHOT_TTL);
+            return null;
         });
-        // 根据查出的 shopId 查询店铺信息
-        // 注意要保证从数据库里查出来的数据是符合顺序的
-        String idStr = StrUtil.join(",", ids);
-        List<Shop> shops = query().in("id", ids).last("ORDER BY FIELD(id, " + idStr + ")").list();
-        for (Shop shop : shops) {
-            // 设置距离
-            shop.setDistance(distanceMap.get(shop.getId().toString()).getValue());
+        return key;
+    }
+
+    // 快照里的 shopId -> 距离，保持快照里的顺序
+    private Map<Long, Double> toDistances(Collection<ZSetOperations.TypedTuple<String>> page) {
+        Map<Long, Double> distances = new LinkedHashMap<>();
+        for (ZSetOperations.TypedTuple<String> tuple : page) {
+            distances.put(Long.valueOf(tuple.getValue()), tuple.getScore());
         }
+        return distances;
+    }
+
+    private List<Shop> toShops(List<ShopGeoIndex.Hit> hits) {
+        Map<Long, Double> distances = new LinkedHashMap<>();
+        for (ShopGeoIndex.Hit hit : hits) {
+            distances.put(hit.getShopId(), hit.getDistance());
+        }
+        return toShops(distances);
+    }
+
+    // 根据 shopId、距离查询店铺，按距离从近到远返回
+    private List<Shop> toShops(Map<Long, Double> distances) {
+        if (distances.isEmpty()) {
+            return Collections.emptyList();
+        }
+        // 一次 MGET 从店铺缓存里批量取，只有没命中的才查数据库，不再每次执行 ORDER BY FIELD
+        Map<Long, Shop> cached = cacheClient.getAll(shopCache, distances.keySet());
+        List<Shop> shops = new ArrayList<>(cached.size());
+        for (Shop shop : cached.values()) {
+            // 缓存里的对象可能被本地缓存共享，复制一份再设置距离
+            Shop copy = BeanUtil.copyProperties(shop, Shop.class);
+            copy.setDistance(distances.get(shop.getId()));
+            shops.add(copy);
+        }
+        // 在 Java 里按距离排序  排序是稳定的，距离相同时保持传入的顺序
+        shops.sort(Comparator.comparingDouble(Shop::getDistance));
+        return shops;
+    }
 
-        return Result.ok(shops);
+    // 当前事务提交后执行  没有事务时直接执行
+    private void afterCommit(Runnable action) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            action.run();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                action.run();
+            }
+        });
     }
 }
@@ -5,12 +5,18 @@ import cn.hutool.core.bean.copier.CopyOptions;
 import cn.hutool.core.lang.UUID;
 import cn.hutool.core.util.RandomUtil;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.config.CacheProperties;
 import com.hmdp.dto.LoginFormDTO;
 import com.hmdp.dto.Result;
 import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.User;
 import com.hmdp.mapper.UserMapper;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.BloomFilterManager;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheCodecs;
+import com.hmdp.utils.CacheSpec;
+import com.hmdp.utils.RedisBloomFilter;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.RegexUtils;
 import com.hmdp.utils.SystemConstants;
@@ -20,6 +26,7 @@ import org.springframework.data.redis.connection.BitFieldSubCommands;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
 import javax.servlet.http.HttpSession;
 import java.time.LocalDateTime;
@@ -44,6 +51,41 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private RedisBloomFilter userBloomFilter;
+
+    @Resource
+    private BloomFilterManager bloomFilterManager;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private CacheProperties cacheProperties;
+
+    private CacheSpec<Long, UserDTO> userCache;
+
+    @PostConstruct
+    private void init() {
+        // 用户缓存：只缓存 UserDTO，不保存手机号、密码等敏感信息
+        userCache = CacheSpec.<Long, UserDTO>builder()
+                .keyPrefix(RedisConstants.CACHE_USER_KEY)
+                .lockKeyPrefix(RedisConstants.LOCK_USER_KEY)
+                .codec(CacheCodecs.of(UserDTO.class, cacheProperties.getUser().getCodec()))
+                .dbFallback(id -> {
+                    User user = getById(id);
+                    return user == null ? null : BeanUtil.copyProperties(user, UserDTO.class);
+                })
+                .ttl(RedisConstants.CACHE_USER_TTL)
+                .unit(TimeUnit.MINUTES)
+                .mode(cacheProperties.getUser().getMode())
+                .ttlJitter(cacheProperties.getUser().getTtlJitter())
+                .earlyRefreshBeta(cacheProperties.getUser().getEarlyRefreshBeta())
+                .existenceFilter(userBloomFilter::mightContain)
+                .build();
+        cacheClient.register(userCache);
+    }
+
     @Override
     public Result sendCode(String phone, HttpSession session) {
         // 1. 校验手机号
@@ -179,6 +221,16 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
     }
 
 
+    @Override
+    public Result queryUserById(Long id) {
+        // 根据 id 查询用户信息，返回 userDTO
+        UserDTO userDTO = cacheClient.get(userCache, id);
+        if (userDTO == null) {
+            return Result.ok();
+        }
+        return Result.ok(userDTO);
+    }
+
     private User createUserWithPhone(String phone) {
         // 1. 创建用户
         User user = new User();
@@ -186,6 +238,8 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
         user.setNickName(SystemConstants.USER_NICK_NAME_PREFIX + RandomUtil.randomString(10));
         // 2. 保存用户
         save(user);
+        // 3. 新用户 id 加入布隆过滤器
+        bloomFilterManager.add(userBloomFilter, user.getId());
         log.debug("新创建用户，手机号：{}  昵称：{}", phone, user.getNickName());
         return user;
     }
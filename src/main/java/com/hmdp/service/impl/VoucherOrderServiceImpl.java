@@ -1,34 +1,50 @@
 package com.hmdp.service.impl;
 
 import cn.hutool.core.bean.BeanUtil;
-import cn.hutool.core.util.BooleanUtil;
+import cn.hutool.core.thread.NamedThreadFactory;
+import cn.hutool.core.thread.ThreadUtil;
+import cn.hutool.core.util.RandomUtil;
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.config.OrderProperties;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
-import com.hmdp.utils.RedisIdWorkder;
+import com.hmdp.utils.IdGenerator;
+import com.hmdp.utils.SeckillSoldOut;
+import com.hmdp.utils.SeckillStockShards;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
 import org.redisson.api.RedissonClient;
 import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.domain.Range;
 import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
 
 /**
  * <p>
@@ -45,8 +61,9 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Resource
     private ISeckillVoucherService seckillVoucherService;
 
+    // 按 hmdp.id.strategy 注入 RedisIdWorkder 或 SnowflakeIdWorker
     @Resource
-    private RedisIdWorkder redisIdWorkder;
+    private IdGenerator idGenerator;
 
 
     // 这里还有一个 Spring 事务失效的问题，因为 @Transactional 实现事务是基于动态代理实现的
@@ -61,31 +78,57 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Resource
     private RedissonClient redissonClient;
 
+    @Resource
+    private JdbcTemplate jdbcTemplate;
+
+    @Resource
+    private OrderProperties orderProperties;
+
+    @Resource
+    private SeckillStockShards seckillStockShards;
+
+    @Resource
+    private SeckillSoldOut seckillSoldOut;
+
     private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
 
     private BlockingQueue<VoucherOrder> orderTasks = new ArrayBlockingQueue<>(1024 * 1024);
 
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
+    private ExecutorService seckillOrderExecutor;
 
     private static final String STREAM_KEY = "stream.orders";
     private static final String GROUP_NAME = "g1";
 
-    private static final String CONSUMER_NAME = "c1";
+    // 当前实例的标识  pid@主机名-随机串，每个消费线程的名称为 实例标识-线程序号，多个实例、多个线程互不相同
+    private static final String INSTANCE_ID = ManagementFactory.getRuntimeMXBean().getName() + "-" + RandomUtil.randomString(6);
+    // 接管其他消费者的 pending 消息时使用的消费者名称
+    private static final String RECLAIM_CONSUMER = INSTANCE_ID + "-reclaim";
+    // 没有 pending 消息且超过这么久没有活动的消费者，认为所在的实例已经下线，从消费者组里删除
+    private static final long CONSUMER_EXPIRE_MILLIS = 60 * 60 * 1000;
 
 
     private class VoucherOrderHandler implements Runnable {
 
+        private final String consumerName;
+
+        private VoucherOrderHandler(String consumerName) {
+            this.consumerName = consumerName;
+        }
 
         @Override
         public void run() {
+            // 先处理上次运行时已读取但没有确认的消息
+            handlePendingList();
             while (true) {
                 try {
 //                    log.debug("正在等待订单");
-                    // 1. 获取 Redis Stream 消息队列中的订单信息
-                    //    XREADGROUP GROUP g1 c1 COUNT 1 BLOCK 2000 STREAMS stream.orders >
+                    // 1. 获取 Redis Stream 消息队列中的订单信息  一次最多读 batchSize 条
+                    //    XREADGROUP GROUP g1 c1-0 COUNT 100 BLOCK 2000 STREAMS stream.orders >
                     List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from(GROUP_NAME, CONSUMER_NAME),
-                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
+                            Consumer.from(GROUP_NAME, consumerName),
+                            StreamReadOptions.empty()
+                                    .count(orderProperties.getBatchSize())
+                                    .block(Duration.ofMillis(orderProperties.getBlockMillis())),
                             StreamOffset.create(STREAM_KEY, ReadOffset.lastConsumed())
                     );
 
@@ -95,38 +138,28 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
                         continue;
                     }
 
-                    // 3. 获取成功，执行下单流程
-                    // 获取消息
-                    MapRecord<String, Object, Object> msg = list.get(0);
-                    // 从消息map中解析订单信息
-                    Map<Object, Object> values = msg.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
-                    log.debug("获取到异步订单: {}", voucherOrder);
-                    // 执行下单流程
-                    log.debug("开始执行下单流程...");
-                    voucherOrderService.handleVoucherOrder(voucherOrder);
-
-                    // 4. ACK确认  XACK stream.orders g1 id
-                    log.debug("发送 ACK 消息id = {}", msg.getId());
-                    stringRedisTemplate.opsForStream().acknowledge(STREAM_KEY, GROUP_NAME, msg.getId());
+                    // 3. 获取成功，整批执行下单流程并确认
+                    handleBatch(list);
 
                 } catch (Exception e) {
-                    log.debug("处理订单异常", e);
+                    log.error("处理订单异常", e);
                     handlePendingList();
                 }
             }
         }
 
         private void handlePendingList() {
+            // 从头到尾遍历一遍 Pending List  处理失败的消息留在里面，这一遍不再重试，由 reclaimPending 过一会儿再接管
+            String offset = "0";
             while (true) {
                 try {
                     log.debug("正在从 pending-list 中读取订单");
-                    // 1. 从 Pending List 获取第一条订单消息
-                    //    XREADGROUP GROUP g1 c1 COUNT 1 STREAMS stream.orders 0
+                    // 1. 从 Pending List 获取订单消息  从上一批最后一条之后开始
+                    //    XREADGROUP GROUP g1 c1-0 COUNT 100 STREAMS stream.orders 0
                     List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from(GROUP_NAME, CONSUMER_NAME),
-                            StreamReadOptions.empty().count(1),
-                            StreamOffset.create(STREAM_KEY, ReadOffset.from("0"))
+                            Consumer.from(GROUP_NAME, consumerName),
+                            StreamReadOptions.empty().count(orderProperties.getBatchSize()),
+                            StreamOffset.create(STREAM_KEY, ReadOffset.from(offset))
                     );
 
                     // 2. 判断消息获取是否成功
@@ -135,24 +168,14 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
                         break;
                     }
 
-                    // 3. 获取成功，执行下单流程
-                    // 获取消息
-                    MapRecord<String, Object, Object> msg = list.get(0);
-                    // 从消息map中解析订单信息
-                    Map<Object, Object> values = msg.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
-                    log.debug("获取到异步订单: {}", voucherOrder);
-                    // 执行下单流程
-                    log.debug("开始执行下单流程...");
-                    voucherOrderService.handleVoucherOrder(voucherOrder);
-
-                    // 4. ACK确认  XACK stream.orders g1 id
-                    log.debug("发送 ACK 消息id = {}", msg.getId());
-                    stringRedisTemplate.opsForStream().acknowledge(STREAM_KEY, GROUP_NAME, msg.getId());
+                    // 3. 获取成功，整批执行下单流程并确认
+                    handleBatch(list);
+                    offset = list.get(list.size() - 1).getId().getValue();
 
                 } catch (Exception e) {
-                    log.debug("处理 pending-list 订单异常", e);
-                    // 进入下一次循环
+                    log.error("处理 pending-list 订单异常", e);
+                    // 稍等一会再进入下一次循环  避免数据库不可用时空转
+                    ThreadUtil.sleep(100);
                 }
             }
         }
@@ -173,8 +196,173 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 //        }
     }
 
+    // 整批执行下单流程，成功后一起确认
+    // 整批失败时（比如其中一条数据有问题，整个事务回滚）改为逐条处理，只确认成功的，失败的留在 pending-list 里
+    private void handleBatch(List<? extends MapRecord<String, ?, ?>> list) {
+        RecordId[] ids = new RecordId[list.size()];
+        try {
+            // 从消息map中解析订单信息
+            List<VoucherOrder> orders = new ArrayList<>(list.size());
+            for (int i = 0; i < list.size(); i++) {
+                MapRecord<String, ?, ?> msg = list.get(i);
+                orders.add(toVoucherOrder(msg));
+                ids[i] = msg.getId();
+            }
+            log.debug("获取到 {} 个异步订单", orders.size());
+            // 执行下单流程  整批一个事务
+            voucherOrderService.handleVoucherOrders(orders);
+        } catch (Exception e) {
+            log.error("整批处理 {} 个订单失败，改为逐条处理", list.size(), e);
+            handleOneByOne(list);
+            return;
+        }
+
+        // ACK确认  整批一起确认 XACK stream.orders g1 id1 id2 ...
+        stringRedisTemplate.opsForStream().acknowledge(STREAM_KEY, GROUP_NAME, ids);
+    }
+
+    private void handleOneByOne(List<? extends MapRecord<String, ?, ?>> list) {
+        List<RecordId> acked = new ArrayList<>(list.size());
+        for (MapRecord<String, ?, ?> msg : list) {
+            VoucherOrder order;
+            try {
+                order = toVoucherOrder(msg);
+            } catch (Exception e) {
+                // 消息本身有问题  重试也不会成功，确认掉避免一直留在 pending-list 里
+                log.error("订单消息格式错误，丢弃 id = {} 内容 = {}", msg.getId(), msg.getValue(), e);
+                acked.add(msg.getId());
+                continue;
+            }
+            try {
+                voucherOrderService.handleVoucherOrder(order);
+                acked.add(msg.getId());
+            } catch (Exception e) {
+                log.error("处理订单失败，留在 pending-list 中稍后重试 id = {} 订单id = {}", msg.getId(), order.getId(), e);
+            }
+        }
+        if (!acked.isEmpty()) {
+            stringRedisTemplate.opsForStream().acknowledge(STREAM_KEY, GROUP_NAME, acked.toArray(new RecordId[0]));
+        }
+    }
+
+    private static VoucherOrder toVoucherOrder(MapRecord<String, ?, ?> msg) {
+        VoucherOrder order = BeanUtil.fillBeanWithMap(msg.getValue(), new VoucherOrder(), true);
+        if (order.getId() == null || order.getUserId() == null || order.getVoucherId() == null) {
+            throw new IllegalArgumentException("订单消息缺少字段");
+        }
+        return order;
+    }
+
+    /**
+     * 接管空闲太久的 pending 消息  消费者所在的实例宕机后，它读取了但还没确认的订单由存活的实例继续处理
+     * 不会重复下单：XCLAIM 带最小空闲时间，多个实例同时接管同一条消息时只有一个成功；写库前还会跳过已存在的订单
+     */
+    @Scheduled(fixedDelay = 5000)
+    public void reclaimPending() {
+        try {
+            // 1. XPENDING stream.orders g1 - + 100  找出空闲超过阈值的消息
+            long claimIdleMillis = orderProperties.getClaimIdleMillis();
+            PendingMessages pending = stringRedisTemplate.opsForStream()
+                    .pending(STREAM_KEY, GROUP_NAME, Range.unbounded(), orderProperties.getBatchSize());
+            List<RecordId> stale = new ArrayList<>();
+            for (PendingMessage message : pending) {
+                if (message.getElapsedTimeSinceLastDelivery().toMillis() >= claimIdleMillis) {
+                    stale.add(message.getId());
+                }
+            }
+
+            // 2. XCLAIM stream.orders g1 实例标识-reclaim claimIdleMillis id1 id2 ...  转到自己名下后整批处理
+            if (!stale.isEmpty()) {
+                byte[] rawKey = STREAM_KEY.getBytes(StandardCharsets.UTF_8);
+                List<ByteRecord> claimed = stringRedisTemplate.execute((RedisCallback<List<ByteRecord>>) connection ->
+                        connection.streamCommands().xClaim(rawKey, GROUP_NAME, RECLAIM_CONSUMER,
+                                Duration.ofMillis(claimIdleMillis), stale.toArray(new RecordId[0])));
+                if (claimed != null && !claimed.isEmpty()) {
+                    log.info("接管了 {} 个超时未确认的订单", claimed.size());
+                    handleBatch(claimed.stream()
+                            .map(record -> record.deserialize(RedisSerializer.string()))
+                            .collect(Collectors.toList()));
+                }
+            }
+
+            // 3. 删除已经下线的消费者  没有 pending 消息、很久没有读取过
+            StreamInfo.XInfoConsumers consumers = stringRedisTemplate.opsForStream().consumers(STREAM_KEY, GROUP_NAME);
+            consumers.forEach(consumer -> {
+                if (consumer.pendingCount() == 0 && consumer.idleTimeMs() > CONSUMER_EXPIRE_MILLIS
+                        && !consumer.consumerName().startsWith(INSTANCE_ID)) {
+                    stringRedisTemplate.opsForStream().deleteConsumer(STREAM_KEY, Consumer.from(GROUP_NAME, consumer.consumerName()));
+                }
+            });
+        } catch (Exception e) {
+            log.error("接管 pending 订单异常", e);
+        }
+    }
+
+    /**
+     * 批量下单  同一个优惠券的订单一条 update 扣减库存，订单用 JDBC 批量插入，全部在一个事务里
+     */
+    @Transactional
+    public void handleVoucherOrders(List<VoucherOrder> orders) {
+        // 1. 去掉已经写入过的订单  上一次写库成功但 XACK 失败时，这批消息会被重新处理
+        Map<Long, VoucherOrder> pending = new LinkedHashMap<>();
+        for (VoucherOrder order : orders) {
+            pending.put(order.getId(), order);
+        }
+        query().select("id").in("id", pending.keySet()).list()
+                .forEach(existing -> pending.remove(existing.getId()));
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        // 2. 按优惠券分组扣减库存  set stock = stock - k where voucher_id = ? and stock >= k
+        Map<Long, List<VoucherOrder>> byVoucher = pending.values().stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, LinkedHashMap::new, Collectors.toList()));
+        List<VoucherOrder> accepted = new ArrayList<>(pending.size());
+        byVoucher.forEach((voucherId, group) -> {
+            boolean stockSuccess = seckillVoucherService.update()
+                    .setSql("stock = stock - " + group.size())
+                    .eq("voucher_id", voucherId)
+                    .ge("stock", group.size())
+                    .update();
+            if (stockSuccess) {
+                accepted.addAll(group);
+                return;
+            }
+            // 数据库里的库存不够整组扣减（和 Redis 不一致时才会出现）  逐个扣减，扣不到的订单丢弃
+            for (VoucherOrder order : group) {
+                boolean success = seckillVoucherService.update()
+                        .setSql("stock = stock - 1")
+                        .eq("voucher_id", voucherId)
+                        .gt("stock", 0)
+                        .update();
+                if (success) {
+                    accepted.add(order);
+                } else {
+                    log.debug("扣减库存失败! 订单id = {}", order.getId());
+                }
+            }
+        });
+        if (accepted.isEmpty()) {
+            return;
+        }
+
+        // 3. 批量插入订单  连接参数 rewriteBatchedStatements=true，驱动会合并成一条多值 INSERT
+        jdbcTemplate.batchUpdate(
+                "INSERT INTO tb_voucher_order (id, user_id, voucher_id) VALUES (?, ?, ?)",
+                accepted, accepted.size(), (ps, order) -> {
+                    ps.setLong(1, order.getId());
+                    ps.setLong(2, order.getUserId());
+                    ps.setLong(3, order.getVoucherId());
+                });
+        log.debug("mysql 扣减库存 创建订单成功 {} 个", accepted.size());
+    }
+
     @Transactional
     public void handleVoucherOrder(VoucherOrder voucherOrder) {
+        // 订单已经写入过  上一次写库成功但 XACK 失败时，这条消息会被重新处理
+        if (getById(voucherOrder.getId()) != null) {
+            return;
+        }
         // 扣减库存
         boolean stockSuccess = seckillVoucherService.update()
                 .setSql("stock = stock - 1")  // set stock = stock - 1 where id = ? and stock > 0
@@ -197,12 +385,33 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 
     @PostConstruct  // Spring Bean生命周期的知识点
     private void init() {
-        // 在 Redis 中创建 stream.orders
-        if (BooleanUtil.isFalse(stringRedisTemplate.hasKey(STREAM_KEY))) {
-            stringRedisTemplate.opsForStream().createGroup(STREAM_KEY, ReadOffset.from("0"), GROUP_NAME);
+        // 在 Redis 中创建 stream.orders 和消费者组  XGROUP CREATE stream.orders g1 0 MKSTREAM
+        // 多个实例同时启动时只有一个能创建成功，其他的会收到 BUSYGROUP，说明组已经存在
+        byte[] rawKey = STREAM_KEY.getBytes(StandardCharsets.UTF_8);
+        try {
+            stringRedisTemplate.execute((RedisCallback<String>) connection ->
+                    connection.streamCommands().xGroupCreate(rawKey, GROUP_NAME, ReadOffset.from("0"), true));
+        } catch (Exception e) {
+            if (!isBusyGroup(e)) {
+                throw e;
+            }
         }
-        // 当前类初始化完毕后，就开启一个线程用于处理异步下单任务
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
+        // 当前类初始化完毕后，开启多个线程处理异步下单任务  每个线程是消费者组里的一个消费者，各自读取不同的消息
+        int threads = orderProperties.getConsumerThreads();
+        seckillOrderExecutor = Executors.newFixedThreadPool(threads, new NamedThreadFactory("seckill-order-", true));
+        for (int i = 0; i < threads; i++) {
+            seckillOrderExecutor.submit(new VoucherOrderHandler(INSTANCE_ID + "-" + i));
+        }
+        log.info("订单消费者已启动 {}-0 ~ {}-{}", INSTANCE_ID, INSTANCE_ID, threads - 1);
+    }
+
+    private static boolean isBusyGroup(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (StrUtil.contains(t.getMessage(), "BUSYGROUP")) {
+                return true;
+            }
+        }
+        return false;
     }
 
     static {
@@ -214,21 +423,57 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 
     @Override
     public Result seckillVoucher(Long voucherId) {
+        // 0. 本节点已经知道卖完了  直接返回，不再访问 Redis
+        if (seckillSoldOut.isSoldOut(voucherId)) {
+            return Result.fail("库存不足");
+        }
+
         // 1. 执行 Lua 脚本
         Long userId = UserHolder.getUser().getId();
-        long orderId = redisIdWorkder.nextId("order");
-        Long result = stringRedisTemplate.execute(
-                SECKILL_SCRIPT,
-                Collections.emptyList(),
-                voucherId.toString(), userId.toString(), String.valueOf(orderId)
-        );
+        long orderId = idGenerator.nextId("order");
+        int r;
+        if (seckillStockShards.shards(voucherId) > 1) {
+            // 1.1 库存分片的优惠券  各分片在不同的 slot 上，不能和 stream.orders 放在一个脚本里，扣减成功后再发消息
+            SeckillStockShards.Taken taken = seckillStockShards.tryOrder(voucherId, userId);
+            r = taken.getCode();
+            if (r == 0) {
+                Map<String, String> order = new LinkedHashMap<>();
+                order.put("userId", userId.toString());
+                order.put("voucherId", voucherId.toString());
+                order.put("id", String.valueOf(orderId));
+                try {
+                    stringRedisTemplate.opsForStream().add(STREAM_KEY, order);
+                } catch (Exception e) {
+                    // 消息没发出去  把扣掉的库存和一人一单的占位还回去，用户可以重试
+                    log.error("发送订单消息失败，撤销库存扣减 订单id = {}", orderId, e);
+                    try {
+                        seckillStockShards.undo(voucherId, userId, taken.getShard());
+                    } catch (Exception undoError) {
+                        log.error("撤销库存扣减失败 优惠券id = {} 用户id = {}", voucherId, userId, undoError);
+                    }
+                    return Result.fail("下单失败，请重试");
+                }
+            }
+        } else {
+            Long result = stringRedisTemplate.execute(
+                    SECKILL_SCRIPT,
+                    Collections.emptyList(),
+                    voucherId.toString(), userId.toString(), String.valueOf(orderId)
+            );
+            r = result.intValue();
+        }
 
         // 2. 判断是否秒杀成功
-        int r = result.intValue();
         // 返回非 0 说明秒杀失败，根据返回值返回错误信息
         if (r != 0) {
-            if (r == 1) return Result.fail("库存不足");
+            if (r == 1) {
+                // 记下售罄  之后的请求在本节点和其他节点直接拒绝
+                seckillSoldOut.markSoldOut(voucherId);
+                return Result.fail("库存不足");
+            }
             if (r == 2) return Result.fail("不能重复下单");
+            if (r == 3) return Result.fail("秒杀尚未开始!");
+            if (r == 4) return Result.fail("秒杀已经结束!");
         }
 
         // 3、返回订单id
@@ -253,7 +498,7 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         }
         // 2.2 返回 0 说明秒杀成功，把下单信息保存到阻塞队列，执行异步下单流程
         // 生成订单id
-        long orderId = redisIdWorkder.nextId("order");
+        long orderId = idGenerator.nextId("order");
         // 将下单信息（优惠券id、用户id、订单id）保存到阻塞队列，执行异步下单
         VoucherOrder voucherOrder = new VoucherOrder();
         voucherOrder.setId(orderId);   // 订单id
@@ -352,7 +597,7 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 
         // 6. 创建订单
         VoucherOrder voucherOrder = new VoucherOrder();
-        long orderId = redisIdWorkder.nextId("order");
+        long orderId = idGenerator.nextId("order");
         voucherOrder.setId(orderId);   // 订单id
         voucherOrder.setVoucherId(voucherId);  // 优惠券id
         voucherOrder.setUserId(userId);  // 用户id
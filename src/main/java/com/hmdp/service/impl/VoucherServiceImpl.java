@@ -1,6 +1,7 @@
 package com.hmdp.service.impl;
 
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.config.OrderProperties;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Voucher;
 import com.hmdp.mapper.VoucherMapper;
@@ -8,12 +9,20 @@ import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
 import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.SeckillSoldOut;
+import com.hmdp.utils.SeckillStockShards;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * <p>
@@ -32,6 +41,15 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private SeckillStockShards seckillStockShards;
+
+    @Resource
+    private OrderProperties orderProperties;
+
+    @Resource
+    private SeckillSoldOut seckillSoldOut;
+
     @Override
     public Result queryVoucherOfShop(Long shopId) {
         // 查询优惠券信息
@@ -52,7 +70,56 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
-        // 保存秒杀库存到 Redis 不设置过期时间
+        // 保存秒杀时间和秒杀库存到 Redis 不设置过期时间  Lua 脚本里判断秒杀时间，时间外的请求不会进入 stream
+        Map<String, String> window = new HashMap<>();
+        if (voucher.getBeginTime() != null) {
+            window.put("begin", String.valueOf(toEpochMilli(voucher.getBeginTime())));
+        }
+        if (voucher.getEndTime() != null) {
+            window.put("end", String.valueOf(toEpochMilli(voucher.getEndTime())));
+        }
+        int shards = orderProperties.getStockShards();
+        if (shards > 1) {
+            // 库存拆到多个分片  分散热点 key
+            seckillStockShards.init(voucher.getId(), voucher.getStock(), shards, window);
+            return;
+        }
+        if (!window.isEmpty()) {
+            stringRedisTemplate.opsForHash().putAll(RedisConstants.SECKILL_VOUCHER_KEY + voucher.getId(), window);
+        }
         stringRedisTemplate.opsForValue().set(RedisConstants.SECKILL_STOCK_KEY + voucher.getId(), voucher.getStock().toString());
     }
+
+    @Override
+    @Transactional
+    public Result addSeckillStock(Long voucherId, Integer count) {
+        if (count == null || count <= 0) {
+            return Result.fail("库存数必须大于 0");
+        }
+        // 1. 数据库  set stock = stock + count where voucher_id = ?
+        boolean success = seckillVoucherService.update()
+                .setSql("stock = stock + " + count)
+                .eq("voucher_id", voucherId)
+                .update();
+        if (!success) {
+            return Result.fail("秒杀券不存在");
+        }
+        // 2. 事务提交后再加 Redis 里的库存  回滚时不会多卖；然后清除各节点的售罄标记
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                if (seckillStockShards.shards(voucherId) > 1) {
+                    seckillStockShards.addStock(voucherId, count);
+                } else {
+                    stringRedisTemplate.opsForValue().increment(RedisConstants.SECKILL_STOCK_KEY + voucherId, count);
+                }
+                seckillSoldOut.reset(voucherId);
+            }
+        });
+        return Result.ok();
+    }
+
+    private static long toEpochMilli(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
 }
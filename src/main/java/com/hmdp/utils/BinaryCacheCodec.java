@@ -0,0 +1,354 @@
+package com.hmdp.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * 紧凑的二进制编码，代替 JSON 缓存实体  不保存字段名，数字用变长编码，体积和解析开销都比 JSON 小
+ *
+ * 格式：
+ * <pre>
+ * 魔数(1) 版本(1) 标志(1) 字段签名(4) [逻辑过期时间] 非空字段位图 非空字段的值...
+ * </pre>
+ * 字段按名称排序后依次写入，字段签名由字段名和类型计算，实体类的字段变了以后旧数据签名对不上，解码失败按未命中处理
+ * 支持的字段类型：Long、Integer、Double、Boolean、String、LocalDateTime
+ */
+public class BinaryCacheCodec<T> implements CacheCodec<T> {
+
+    // 第一个字节，JSON 不会以它开头，用来区分两种格式
+    public static final byte MAGIC = (byte) 0xB1;
+    public static final byte VERSION = 1;
+
+    private static final byte FLAG_PLAIN = 0;
+    private static final byte FLAG_LOGICAL = 1;
+
+    private static final int TYPE_LONG = 1;
+    private static final int TYPE_INT = 2;
+    private static final int TYPE_DOUBLE = 3;
+    private static final int TYPE_BOOLEAN = 4;
+    private static final int TYPE_STRING = 5;
+    private static final int TYPE_DATE_TIME = 6;
+
+    private final Constructor<T> constructor;
+    private final Field[] fields;
+    private final int[] types;
+    private final int signature;
+
+    public BinaryCacheCodec(Class<T> type) {
+        try {
+            this.constructor = type.getDeclaredConstructor();
+            this.constructor.setAccessible(true);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalArgumentException(type.getName() + " 缺少无参构造函数", e);
+        }
+
+        List<Field> list = new ArrayList<>();
+        for (Field field : type.getDeclaredFields()) {
+            int modifiers = field.getModifiers();
+            if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers)) {
+                continue;
+            }
+            field.setAccessible(true);
+            list.add(field);
+        }
+        // 按字段名排序  不依赖反射返回字段的顺序
+        list.sort(Comparator.comparing(Field::getName));
+
+        this.fields = list.toArray(new Field[0]);
+        this.types = new int[fields.length];
+        int hash = 17;
+        for (int i = 0; i < fields.length; i++) {
+            types[i] = typeOf(fields[i]);
+            hash = 31 * hash + fields[i].getName().hashCode();
+            hash = 31 * hash + types[i];
+        }
+        this.signature = hash;
+    }
+
+    /**
+     * 判断是不是二进制格式  用于和 JSON 格式共存时选择解码器
+     */
+    public static boolean isBinary(byte[] bytes) {
+        return bytes.length > 0 && bytes[0] == MAGIC;
+    }
+
+    @Override
+    public byte[] encode(T value) {
+        Writer out = new Writer();
+        writeHeader(out, FLAG_PLAIN);
+        writeFields(out, value);
+        return out.toByteArray();
+    }
+
+    @Override
+    public T decode(byte[] bytes) {
+        Reader in = new Reader(bytes);
+        readHeader(in, FLAG_PLAIN);
+        return readFields(in);
+    }
+
+    @Override
+    public byte[] encodeLogical(RedisData redisData) {
+        Writer out = new Writer();
+        writeHeader(out, FLAG_LOGICAL);
+        writeDateTime(out, redisData.getExpireTime());
+        @SuppressWarnings("unchecked")
+        T value = (T) redisData.getData();
+        writeFields(out, value);
+        return out.toByteArray();
+    }
+
+    @Override
+    public RedisData decodeLogical(byte[] bytes) {
+        Reader in = new Reader(bytes);
+        readHeader(in, FLAG_LOGICAL);
+        RedisData redisData = new RedisData();
+        redisData.setExpireTime(readDateTime(in));
+        redisData.setData(readFields(in));
+        return redisData;
+    }
+
+    private void writeHeader(Writer out, byte flag) {
+        out.write(MAGIC);
+        out.write(VERSION);
+        out.write(flag);
+        out.writeInt(signature);
+    }
+
+    private void readHeader(Reader in, byte flag) {
+        if (in.read() != MAGIC) {
+            throw new IllegalStateException("不是二进制缓存格式");
+        }
+        byte version = in.read();
+        if (version != VERSION) {
+            throw new IllegalStateException("不支持的二进制缓存版本 " + version);
+        }
+        if (in.read() != flag) {
+            throw new IllegalStateException("缓存格式与缓存模式不一致");
+        }
+        if (in.readInt() != signature) {
+            throw new IllegalStateException("实体字段已变化，缓存需要重建");
+        }
+    }
+
+    private void writeFields(Writer out, T value) {
+        try {
+            // 1. 非空字段位图
+            Object[] values = new Object[fields.length];
+            byte[] bitmap = new byte[(fields.length + 7) / 8];
+            for (int i = 0; i < fields.length; i++) {
+                values[i] = fields[i].get(value);
+                if (values[i] != null) {
+                    bitmap[i >>> 3] |= (byte) (1 << (i & 7));
+                }
+            }
+            out.write(bitmap);
+
+            // 2. 依次写入非空字段
+            for (int i = 0; i < fields.length; i++) {
+                Object v = values[i];
+                if (v == null) {
+                    continue;
+                }
+                switch (types[i]) {
+                    case TYPE_LONG:
+                        out.writeVarLong(zigzag((Long) v));
+                        break;
+                    case TYPE_INT:
+                        out.writeVarLong(zigzag((Integer) v));
+                        break;
+                    case TYPE_DOUBLE:
+                        out.writeLong(Double.doubleToRawLongBits((Double) v));
+                        break;
+                    case TYPE_BOOLEAN:
+                        out.write((byte) ((Boolean) v ? 1 : 0));
+                        break;
+                    case TYPE_STRING:
+                        byte[] str = ((String) v).getBytes(StandardCharsets.UTF_8);
+                        out.writeVarLong(str.length);
+                        out.write(str);
+                        break;
+                    default:
+                        writeDateTime(out, (LocalDateTime) v);
+                }
+            }
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private T readFields(Reader in) {
+        try {
+            T value = constructor.newInstance();
+            byte[] bitmap = in.read((fields.length + 7) / 8);
+            for (int i = 0; i < fields.length; i++) {
+                if ((bitmap[i >>> 3] & (1 << (i & 7))) == 0) {
+                    continue;
+                }
+                Object v;
+                switch (types[i]) {
+                    case TYPE_LONG:
+                        v = unzigzag(in.readVarLong());
+                        break;
+                    case TYPE_INT:
+                        v = (int) unzigzag(in.readVarLong());
+                        break;
+                    case TYPE_DOUBLE:
+                        v = Double.longBitsToDouble(in.readLong());
+                        break;
+                    case TYPE_BOOLEAN:
+                        v = in.read() == 1;
+                        break;
+                    case TYPE_STRING:
+                        int length = (int) in.readVarLong();
+                        v = new String(in.read(length), StandardCharsets.UTF_8);
+                        break;
+                    default:
+                        v = readDateTime(in);
+                }
+                fields[i].set(value, v);
+            }
+            return value;
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // LocalDateTime 不带时区，按 UTC 换算成秒数 + 纳秒，只是为了紧凑地保存年月日时分秒，不涉及时区转换
+    private static void writeDateTime(Writer out, LocalDateTime time) {
+        out.writeVarLong(zigzag(time.toEpochSecond(ZoneOffset.UTC)));
+        out.writeVarLong(time.getNano());
+    }
+
+    private static LocalDateTime readDateTime(Reader in) {
+        long seconds = unzigzag(in.readVarLong());
+        int nanos = (int) in.readVarLong();
+        return LocalDateTime.ofEpochSecond(seconds, nanos, ZoneOffset.UTC);
+    }
+
+    private static int typeOf(Field field) {
+        Class<?> type = field.getType();
+        if (type == Long.class || type == long.class) {
+            return TYPE_LONG;
+        }
+        if (type == Integer.class || type == int.class) {
+            return TYPE_INT;
+        }
+        if (type == Double.class || type == double.class) {
+            return TYPE_DOUBLE;
+        }
+        if (type == Boolean.class || type == boolean.class) {
+            return TYPE_BOOLEAN;
+        }
+        if (type == String.class) {
+            return TYPE_STRING;
+        }
+        if (type == LocalDateTime.class) {
+            return TYPE_DATE_TIME;
+        }
+        throw new IllegalArgumentException("二进制缓存不支持的字段类型 " + field);
+    }
+
+    // zigzag 编码：把负数映射成正数，小的负数也能用较少的字节表示
+    private static long zigzag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    private static long unzigzag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    private static class Writer extends ByteArrayOutputStream {
+
+        private Writer() {
+            super(128);
+        }
+
+        private void write(byte b) {
+            super.write(b);
+        }
+
+        @Override
+        public void write(byte[] bytes) {
+            super.write(bytes, 0, bytes.length);
+        }
+
+        private void writeInt(int v) {
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                super.write(v >>> shift);
+            }
+        }
+
+        private void writeLong(long v) {
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                super.write((int) (v >>> shift));
+            }
+        }
+
+        // 变长编码  每个字节低 7 位保存数据，最高位表示后面还有没有字节
+        private void writeVarLong(long v) {
+            while ((v & ~0x7FL) != 0) {
+                super.write((int) ((v & 0x7F) | 0x80));
+                v >>>= 7;
+            }
+            super.write((int) v);
+        }
+    }
+
+    private static class Reader {
+
+        private final byte[] bytes;
+        private int pos;
+
+        private Reader(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        private byte read() {
+            return bytes[pos++];
+        }
+
+        private byte[] read(int length) {
+            byte[] result = new byte[length];
+            System.arraycopy(bytes, pos, result, 0, length);
+            pos += length;
+            return result;
+        }
+
+        private int readInt() {
+            int v = 0;
+            for (int i = 0; i < 4; i++) {
+                v = (v << 8) | (bytes[pos++] & 0xFF);
+            }
+            return v;
+        }
+
+        private long readLong() {
+            long v = 0;
+            for (int i = 0; i < 8; i++) {
+                v = (v << 8) | (bytes[pos++] & 0xFF);
+            }
+            return v;
+        }
+
+        private long readVarLong() {
+            long v = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = bytes[pos++];
+                v |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return v;
+        }
+    }
+}
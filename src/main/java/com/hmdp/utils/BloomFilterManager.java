@@ -0,0 +1,122 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.util.BooleanUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 管理所有的布隆过滤器：启动时加载、新增 id 的跨节点同步、定时从 Redis 刷新、定时从数据库全量重建
+ */
+@Slf4j
+@Component
+public class BloomFilterManager {
+
+    @Resource
+    private List<RedisBloomFilter> bloomFilters;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @PostConstruct
+    private void init() {
+        // 订阅其他节点新增的 id，消息格式  key:id
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            String body = new String(message.getBody(), StandardCharsets.UTF_8);
+            int index = body.lastIndexOf(':');
+            RedisBloomFilter filter = find(body.substring(0, index));
+            if (filter != null) {
+                filter.putLocal(Long.valueOf(body.substring(index + 1)));
+            }
+        }, new ChannelTopic(RedisConstants.BLOOM_ADD_TOPIC));
+
+        // 启动时在后台加载，加载完成前过滤器不拦截任何请求，不影响启动速度
+        Thread loader = new Thread(() -> bloomFilters.forEach(this::loadOrRebuild), "bloom-filter-loader");
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    /**
+     * 新增数据后调用：写入本地和 Redis，并通知其他节点
+     */
+    public void add(RedisBloomFilter filter, Long id) {
+        filter.put(id);
+        stringRedisTemplate.convertAndSend(RedisConstants.BLOOM_ADD_TOPIC, filter.getKey() + ":" + id);
+    }
+
+    // 定时从 Redis 刷新内存镜像，兜底广播消息丢失的情况
+    @Scheduled(fixedDelay = 5 * 60 * 1000, initialDelay = 5 * 60 * 1000)
+    public void reloadAll() {
+        for (RedisBloomFilter filter : bloomFilters) {
+            try {
+                if (!filter.loadFromRedis()) {
+                    loadOrRebuild(filter);
+                }
+            } catch (Exception e) {
+                log.error("刷新布隆过滤器 {} 失败", filter.getKey(), e);
+            }
+        }
+    }
+
+    // 每天凌晨从数据库全量重建，清理已删除的数据
+    @Scheduled(cron = "0 0 4 * * ?")
+    public void rebuildAll() {
+        bloomFilters.forEach(this::rebuildWithLock);
+    }
+
+    private void loadOrRebuild(RedisBloomFilter filter) {
+        try {
+            if (filter.loadFromRedis()) {
+                log.info("从 Redis 加载布隆过滤器 {} 成功", filter.getKey());
+                return;
+            }
+            // Redis 里没有（第一次启动或 Redis 数据丢失）  从数据库重建
+            rebuildWithLock(filter);
+        } catch (Exception e) {
+            log.error("加载布隆过滤器 {} 失败", filter.getKey(), e);
+        }
+    }
+
+    private void rebuildWithLock(RedisBloomFilter filter) {
+        // 多个节点只需要一个去重建  其他节点等下一次定时刷新时从 Redis 加载
+        String lockKey = RedisConstants.LOCK_BLOOM_KEY + filter.getKey();
+        String token = UUID.randomUUID().toString(true);
+        Boolean success = stringRedisTemplate.opsForValue()
+                .setIfAbsent(lockKey, token, RedisConstants.LOCK_BLOOM_TTL, TimeUnit.MINUTES);
+        if (BooleanUtil.isFalse(success)) {
+            return;
+        }
+        try {
+            filter.rebuild();
+        } catch (Exception e) {
+            log.error("重建布隆过滤器 {} 失败", filter.getKey(), e);
+        } finally {
+            if (token.equals(stringRedisTemplate.opsForValue().get(lockKey))) {
+                stringRedisTemplate.delete(lockKey);
+            }
+        }
+    }
+
+    private RedisBloomFilter find(String key) {
+        for (RedisBloomFilter filter : bloomFilters) {
+            if (filter.getKey().equals(key)) {
+                return filter;
+            }
+        }
+        return null;
+    }
+}
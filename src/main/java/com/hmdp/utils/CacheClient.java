@@ -0,0 +1,749 @@
+package com.hmdp.utils;
+
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.thread.NamedThreadFactory;
+import cn.hutool.core.thread.ThreadUtil;
+import cn.hutool.core.util.BooleanUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+
+/**
+ * 通用的缓存工具  把旁路缓存的读写逻辑从各个业务里抽出来，所有读多写少的业务共用同一套实现和统计
+ * 支持：本地缓存、热点 key 探测、缓存空值、互斥锁重建、逻辑过期、TTL 随机化、提前刷新，具体用哪种由 CacheSpec 决定
+ */
+@Slf4j
+@Component
+public class CacheClient {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Resource
+    private CacheMetrics cacheMetrics;
+
+    // 空值  缓存穿透时写入
+    private static final byte[] EMPTY = new byte[0];
+
+    // 等待其他节点重建缓存时的退避参数：20ms 起步，每次翻倍，最多 200ms，最多重试 10 次
+    private static final long MUTEX_MIN_BACKOFF_MILLIS = 20L;
+    private static final long MUTEX_MAX_BACKOFF_MILLIS = 200L;
+    private static final int MUTEX_MAX_RETRIES = 10;
+
+    // 记录最近加载过的 key 各自的查库耗时，提前刷新时使用
+    private static final int LOAD_COST_CAPACITY = 4096;
+
+    // 热点 key 探测窗口每个时间片的长度
+    private static final long HOT_KEY_SLICE_MILLIS = 1000L;
+
+    private static final DefaultRedisScript<Long> UNLOCK_SCRIPT;
+
+    static {
+        UNLOCK_SCRIPT = new DefaultRedisScript<>();
+        UNLOCK_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
+        UNLOCK_SCRIPT.setResultType(Long.class);
+    }
+
+    // 缓存重建线程池  有界队列，重建任务堆积时直接拒绝，不能让重建拖垮应用
+    private static final ExecutorService CACHE_REBUILD_EXECUTOR = new ThreadPoolExecutor(
+            2, 4, 60L, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(256),
+            new NamedThreadFactory("cache-rebuild-", true),
+            new ThreadPoolExecutor.AbortPolicy());
+
+    // 已注册的缓存配置  key 前缀 -> 配置
+    private final Map<String, CacheSpec<?, ?>> specs = new ConcurrentHashMap<>();
+
+    // 未命中时合并同一个 JVM 内对同一个 key 的并发加载
+    private final SingleFlight<String, Object> loader = new SingleFlight<>();
+
+    // key -> 最近一次查库耗时（纳秒）  没有记录的 key 用所属前缀的平均耗时
+    private final LRUCache<String, Long> loadCosts = CacheUtil.newLRUCache(LOAD_COST_CAPACITY);
+
+    @PostConstruct
+    private void init() {
+        // 订阅缓存失效广播：任意实例删除了缓存，所有实例都删掉自己的本地缓存
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            String key = new String(message.getBody(), StandardCharsets.UTF_8);
+            CacheSpec<?, ?> spec = findSpec(key);
+            if (spec != null) {
+                invalidateLocal(spec, key);
+                log.debug("收到缓存失效广播，删除本地缓存 key = {}", key);
+            }
+        }, new ChannelTopic(RedisConstants.CACHE_INVALIDATE_TOPIC));
+    }
+
+    /**
+     * 注册缓存配置  注册后才能收到本地缓存的失效广播，并出现在统计里
+     */
+    public void register(CacheSpec<?, ?> spec) {
+        specs.put(spec.getKeyPrefix(), spec);
+        cacheMetrics.register(spec.getKeyPrefix(), spec.getStats());
+    }
+
+    /**
+     * 按 key 前缀查找已注册的缓存配置，不存在返回 null
+     */
+    @SuppressWarnings("unchecked")
+    public <ID, T> CacheSpec<ID, T> getSpec(String keyPrefix) {
+        return (CacheSpec<ID, T>) specs.get(keyPrefix);
+    }
+
+    /**
+     * 按 spec 配置的方式查询：存在性过滤 -> 热点 key 缓存 -> 本地缓存 -> Redis -> 数据库
+     * @return 数据不存在时返回 null
+     */
+    public <ID, T> T get(CacheSpec<ID, T> spec, ID id) {
+        // 1. 判断是否可能存在  不存在直接返回，不用再访问缓存和数据库
+        if (spec.getExistenceFilter() != null && !spec.getExistenceFilter().test(id)) {
+            spec.getStats().recordFiltered();
+            return null;
+        }
+
+        // 2. 统计访问次数  热点 key 先查热点缓存，挡住集中打到同一个 key 的流量
+        String key = spec.key(id);
+        HotKeyDetector hotKeyDetector = spec.getHotKeyDetector();
+        boolean hot = hotKeyDetector != null && hotKeyDetector.record(key);
+        if (hot) {
+            T value = spec.getHotKeyCache().get(key);
+            if (value != null) {
+                return value;
+            }
+        }
+
+        // 3. 查本地缓存  热点数据直接在 JVM 内返回，不用走网络也不用反序列化
+        LocalCache<T> localCache = spec.getLocalCache();
+        if (localCache != null) {
+            T value = localCache.get(key);
+            if (value != null) {
+                if (hot) {
+                    spec.getHotKeyCache().put(key, value);
+                }
+                return value;
+            }
+        }
+
+        // 4. 查 Redis
+        T value;
+        switch (spec.getMode()) {
+            case LOGICAL_EXPIRE:
+                value = queryWithLogicalExpire(spec, id);
+                break;
+            case MUTEX:
+                value = queryWithMutex(spec, id);
+                break;
+            default:
+                value = queryWithPassThrough(spec, id);
+        }
+        if (value != null && localCache != null) {
+            localCache.put(key, value);
+        }
+        if (value != null && hot) {
+            spec.getHotKeyCache().put(key, value);
+        }
+        return value;
+    }
+
+    /**
+     * 批量查询：本地缓存 -> 一次 MGET -> 未命中的用一条 SQL 查库 -> 一个管道回填 Redis
+     * 批量未命中不走互斥锁，一次 IN 查询的代价和单个查询差不多，没必要等待其他节点
+     * @return id -> 数据，按 ids 的顺序排列，不存在的 id 不包含在内
+     */
+    public <ID, T> Map<ID, T> getAll(CacheSpec<ID, T> spec, Collection<ID> ids) {
+        Map<ID, T> found = new HashMap<>();
+        // 1. 去重、存在性过滤、查本地缓存
+        List<ID> remaining = new ArrayList<>();
+        Set<ID> hotIds = new HashSet<>();
+        for (ID id : new LinkedHashSet<>(ids)) {
+            if (spec.getExistenceFilter() != null && !spec.getExistenceFilter().test(id)) {
+                spec.getStats().recordFiltered();
+                continue;
+            }
+            String key = spec.key(id);
+            if (spec.getHotKeyDetector() != null && spec.getHotKeyDetector().record(key)) {
+                hotIds.add(id);
+                T value = spec.getHotKeyCache().get(key);
+                if (value != null) {
+                    found.put(id, value);
+                    continue;
+                }
+            }
+            T value = spec.getLocalCache() == null ? null : spec.getLocalCache().get(key);
+            if (value != null) {
+                found.put(id, value);
+            } else {
+                remaining.add(id);
+            }
+        }
+
+        // 2. 剩下的一次 MGET
+        List<ID> misses = new ArrayList<>();
+        if (!remaining.isEmpty()) {
+            byte[][] rawKeys = new byte[remaining.size()][];
+            for (int i = 0; i < rawKeys.length; i++) {
+                rawKeys[i] = spec.key(remaining.get(i)).getBytes(StandardCharsets.UTF_8);
+            }
+            List<byte[]> values = stringRedisTemplate.execute((RedisCallback<List<byte[]>>) connection -> connection.mGet(rawKeys));
+            for (int i = 0; i < remaining.size(); i++) {
+                ID id = remaining.get(i);
+                byte[] bytes = values == null ? null : values.get(i);
+                CacheEntry<T> entry = bytes == null ? null : decode(spec, bytes, -1);
+                if (entry == null) {
+                    spec.getStats().recordMiss();
+                    misses.add(id);
+                    continue;
+                }
+                if (entry.value == null) {
+                    // 命中空值
+                    continue;
+                }
+                if (entry.expireTime != null && !entry.expireTime.isAfter(LocalDateTime.now())) {
+                    // 逻辑过期  先用旧数据，后台重建
+                    refreshExpired(spec, id);
+                } else {
+                    refreshIfNearExpiry(spec, id, entry);
+                }
+                found.put(id, entry.value);
+            }
+        }
+
+        // 3. 未命中的一次查库，一个管道回填
+        if (!misses.isEmpty()) {
+            long begin = System.nanoTime();
+            Map<ID, T> loaded = loadAll(spec, misses);
+            spec.getStats().recordLoad(System.nanoTime() - begin);
+            List<ID> nullIds = new ArrayList<>();
+            for (ID id : misses) {
+                if (!loaded.containsKey(id)) {
+                    nullIds.add(id);
+                }
+            }
+            writeAll(spec, loaded, spec.isCacheNull() ? nullIds : Collections.emptyList());
+            found.putAll(loaded);
+        }
+
+        // 4. 写本地缓存  按传入的顺序返回
+        Map<ID, T> result = new LinkedHashMap<>();
+        for (ID id : ids) {
+            T value = found.get(id);
+            if (value == null || result.containsKey(id)) {
+                continue;
+            }
+            String key = spec.key(id);
+            if (spec.getLocalCache() != null) {
+                spec.getLocalCache().put(key, value);
+            }
+            if (hotIds.contains(id)) {
+                spec.getHotKeyCache().put(key, value);
+            }
+            result.put(id, value);
+        }
+        return result;
+    }
+
+    /**
+     * 缓存空值解决缓存穿透，未命中时直接查库
+     */
+    public <ID, T> T queryWithPassThrough(CacheSpec<ID, T> spec, ID id) {
+        CacheEntry<T> entry = getEntry(spec, spec.key(id));
+        if (entry != null) {
+            refreshIfNearExpiry(spec, id, entry);
+            return entry.value;
+        }
+        spec.getStats().recordMiss();
+        return loadAndCache(spec, id);
+    }
+
+    /**
+     * 缓存空值解决缓存穿透，未命中时用 SingleFlight + 互斥锁重建，解决缓存击穿
+     */
+    public <ID, T> T queryWithMutex(CacheSpec<ID, T> spec, ID id) {
+        CacheEntry<T> entry = getEntry(spec, spec.key(id));
+        if (entry != null) {
+            refreshIfNearExpiry(spec, id, entry);
+            return entry.value;
+        }
+        spec.getStats().recordMiss();
+        return loadOnMiss(spec, id);
+    }
+
+    /**
+     * 逻辑过期解决缓存击穿：key 在 Redis 里永不过期，过期时间存在 value 里
+     * 发现逻辑过期后直接返回旧数据，同时只让一个线程去后台重建，热点 key 过期时不会有大量请求同时打到数据库
+     */
+    public <ID, T> T queryWithLogicalExpire(CacheSpec<ID, T> spec, ID id) {
+        // 1. 查 Redis
+        CacheEntry<T> entry = getEntry(spec, spec.key(id));
+
+        // 2. 未命中 说明还没预热过（或者刚被删掉），只能同步查库并写入
+        if (entry == null) {
+            spec.getStats().recordMiss();
+            return loadOnMiss(spec, id);
+        }
+
+        // 3. 空值或未过期 直接返回  快过期时按概率提前在后台重建
+        if (entry.value == null || entry.expireTime.isAfter(LocalDateTime.now())) {
+            refreshIfNearExpiry(spec, id, entry);
+            return entry.value;
+        }
+
+        // 4. 已过期 获取互斥锁  拿不到锁说明已经有线程在重建了，直接返回旧数据
+        String lockKey = spec.lockKey(id);
+        String lockToken = tryLock(lockKey);
+        if (lockToken == null) {
+            return entry.value;
+        }
+
+        // 5. 拿到锁后再检查一次  可能别的线程刚重建完释放了锁，这次请求已经记过命中了，不再统计
+        CacheEntry<T> latest = getEntry(spec, spec.key(id), false);
+        if (latest != null && (latest.value == null || latest.expireTime.isAfter(LocalDateTime.now()))) {
+            unlock(lockKey, lockToken);
+            return latest.value;
+        }
+
+        // 6. 提交到重建线程池  当前请求不等待，直接返回旧数据
+        rebuildAsync(spec, id, lockKey, lockToken);
+        return entry.value;
+    }
+
+    /**
+     * 查询数据库，并按 spec 的模式写入 Redis，也可以用来提前预热
+     * @return 数据库里的数据，不存在时返回 null
+     */
+    public <ID, T> T loadAndCache(CacheSpec<ID, T> spec, ID id) {
+        long begin = System.nanoTime();
+        T value = spec.getDbFallback().apply(id);
+        long cost = System.nanoTime() - begin;
+        spec.getStats().recordLoad(cost);
+        loadCosts.put(spec.key(id), cost);
+
+        if (value == null) {
+            if (spec.isCacheNull()) {
+                // 数据库里没有 将空值写入 Redis  这个空值是会真正过期的
+                long ttlMillis = jitter(spec, TimeUnit.MINUTES.toMillis(RedisConstants.CACHE_NULL_TTL));
+                rawSet(spec.key(id), EMPTY, Expiration.milliseconds(ttlMillis));
+            }
+            return null;
+        }
+        if (spec.getMode() == CacheMode.LOGICAL_EXPIRE) {
+            setWithLogicalExpire(spec, id, value);
+        } else {
+            set(spec, id, value);
+        }
+        return value;
+    }
+
+    /**
+     * 写入缓存并设置 TTL  TTL 按 spec.ttlJitter 随机延长
+     */
+    public <ID, T> void set(CacheSpec<ID, T> spec, ID id, T value) {
+        long ttlMillis = jitter(spec, spec.getUnit().toMillis(spec.getTtl()));
+        byte[] bytes = spec.getCodec().encode(value);
+        spec.getStats().recordPayload(bytes.length);
+        rawSet(spec.key(id), bytes, Expiration.milliseconds(ttlMillis));
+    }
+
+    /**
+     * 写入缓存  不设置 TTL，逻辑过期时间写在 value 里
+     */
+    public <ID, T> void setWithLogicalExpire(CacheSpec<ID, T> spec, ID id, T value) {
+        RedisData redisData = new RedisData();
+        redisData.setData(value);
+        long ttlMillis = jitter(spec, spec.getUnit().toMillis(spec.getTtl()));
+        redisData.setExpireTime(LocalDateTime.now().plus(Duration.ofMillis(ttlMillis)));
+        byte[] bytes = spec.getCodec().encodeLogical(redisData);
+        spec.getStats().recordPayload(bytes.length);
+        rawSet(spec.key(id), bytes, Expiration.persistent());
+    }
+
+    /**
+     * 批量写入缓存，按 spec 的模式设置 TTL 或逻辑过期时间  所有命令放在一个管道里发送，只有一次网络往返
+     */
+    public <ID, T> void setAll(CacheSpec<ID, T> spec, Map<ID, T> values) {
+        writeAll(spec, values, Collections.emptyList());
+    }
+
+    // 批量写入数据和空值  一个管道
+    private <ID, T> void writeAll(CacheSpec<ID, T> spec, Map<ID, T> values, Collection<ID> nullIds) {
+        if (values.isEmpty() && nullIds.isEmpty()) {
+            return;
+        }
+        boolean logical = spec.getMode() == CacheMode.LOGICAL_EXPIRE;
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (ID id : nullIds) {
+                long ttlMillis = jitter(spec, TimeUnit.MINUTES.toMillis(RedisConstants.CACHE_NULL_TTL));
+                connection.set(spec.key(id).getBytes(StandardCharsets.UTF_8), EMPTY,
+                        Expiration.milliseconds(ttlMillis), RedisStringCommands.SetOption.UPSERT);
+            }
+            for (Map.Entry<ID, T> entry : values.entrySet()) {
+                byte[] rawKey = spec.key(entry.getKey()).getBytes(StandardCharsets.UTF_8);
+                // 每个 key 单独随机 TTL  批量写入的 key 才不会同时过期
+                long ttlMillis = jitter(spec, spec.getUnit().toMillis(spec.getTtl()));
+                if (logical) {
+                    RedisData redisData = new RedisData();
+                    redisData.setData(entry.getValue());
+                    redisData.setExpireTime(LocalDateTime.now().plus(Duration.ofMillis(ttlMillis)));
+                    byte[] bytes = spec.getCodec().encodeLogical(redisData);
+                    spec.getStats().recordPayload(bytes.length);
+                    connection.set(rawKey, bytes, Expiration.persistent(), RedisStringCommands.SetOption.UPSERT);
+                } else {
+                    byte[] bytes = spec.getCodec().encode(entry.getValue());
+                    spec.getStats().recordPayload(bytes.length);
+                    connection.set(rawKey, bytes, Expiration.milliseconds(ttlMillis), RedisStringCommands.SetOption.UPSERT);
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 删除缓存：删 Redis、删本地缓存，并广播给其他实例，让它们也删掉自己的本地缓存
+     */
+    public <ID, T> void evict(CacheSpec<ID, T> spec, ID id) {
+        evictAll(Collections.singletonList(spec.key(id)));
+    }
+
+    /**
+     * 按完整的 key 批量删除缓存  一次 DEL，广播放在一个管道里
+     * key 属于哪类缓存按前缀判断，没有注册过的前缀只删 Redis
+     */
+    public void evictAll(Collection<String> keys) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        stringRedisTemplate.delete(keys);
+        for (String key : keys) {
+            CacheSpec<?, ?> spec = findSpec(key);
+            if (spec != null) {
+                invalidateLocal(spec, key);
+            }
+        }
+        byte[] channel = RedisConstants.CACHE_INVALIDATE_TOPIC.getBytes(StandardCharsets.UTF_8);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String key : keys) {
+                connection.publish(channel, key.getBytes(StandardCharsets.UTF_8));
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 所有已注册缓存的统计，用来评估命中率和本地缓存大小
+     */
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        for (CacheSpec<?, ?> spec : specs.values()) {
+            Map<String, Object> specStats = new LinkedHashMap<>();
+            specStats.put("mode", spec.getMode());
+            specStats.put("redis", spec.getStats().snapshot());
+            if (spec.getLocalCache() != null) {
+                specStats.put("local", spec.getLocalCache().stats());
+            }
+            if (spec.getHotKeyDetector() != null) {
+                specStats.put("hotKey", spec.getHotKeyCache().stats());
+            }
+            stats.put(spec.getKeyPrefix(), specStats);
+        }
+        return stats;
+    }
+
+    /**
+     * 各类缓存当前的热点 key 和最近 10 秒内的估算访问次数
+     */
+    public Map<String, Object> hotKeys() {
+        Map<String, Object> hotKeys = new LinkedHashMap<>();
+        for (CacheSpec<?, ?> spec : specs.values()) {
+            if (spec.getHotKeyDetector() != null) {
+                hotKeys.put(spec.getKeyPrefix(), spec.getHotKeyDetector().hotKeys());
+            }
+        }
+        return hotKeys;
+    }
+
+    /**
+     * 热点 key 探测窗口向前滑动，访问量降下来的 key 移出热点缓存
+     */
+    @Scheduled(fixedRate = HOT_KEY_SLICE_MILLIS)
+    public void rotateHotKeys() {
+        for (CacheSpec<?, ?> spec : specs.values()) {
+            if (spec.getHotKeyDetector() == null) {
+                continue;
+            }
+            for (String key : spec.getHotKeyDetector().rotate()) {
+                spec.getHotKeyCache().invalidate(key);
+                log.debug("key 不再是热点，移出热点缓存 key = {}", key);
+            }
+        }
+    }
+
+    // 缓存未命中时重建缓存：
+    // 同一个 JVM 内的并发请求用 SingleFlight 合并成一次，多个节点之间再用 Redis 互斥锁保证只有一个请求去查库
+    @SuppressWarnings("unchecked")
+    private <ID, T> T loadOnMiss(CacheSpec<ID, T> spec, ID id) {
+        return (T) loader.execute(spec.key(id), () -> loadWithMutex(spec, id));
+    }
+
+    private <ID, T> T loadWithMutex(CacheSpec<ID, T> spec, ID id) {
+        String key = spec.key(id);
+        String lockKey = spec.lockKey(id);
+        long backoff = MUTEX_MIN_BACKOFF_MILLIS;
+        for (int i = 0; i < MUTEX_MAX_RETRIES; i++) {
+            // 1. 尝试获取互斥锁
+            String lockToken = tryLock(lockKey);
+            if (lockToken != null) {
+                try {
+                    // 2. 拿到锁后再查一次缓存  可能别的节点刚重建完释放了锁
+                    //    这次请求已经记过未命中了，再查缓存不统计，否则一次请求会同时算成未命中和命中
+                    CacheEntry<T> entry = getEntry(spec, key, false);
+                    if (entry != null) {
+                        return entry.value;
+                    }
+                    // 3. 查数据库 写缓存
+                    return loadAndCache(spec, id);
+                } finally {
+                    unlock(lockKey, lockToken);
+                }
+            }
+
+            // 4. 没拿到锁 说明其他节点正在查库，休眠一会再看缓存有没有被写好
+            //    休眠时间逐次翻倍，但有上限，既不空转也不会等太久
+            ThreadUtil.sleep(backoff);
+            backoff = Math.min(backoff * 2, MUTEX_MAX_BACKOFF_MILLIS);
+            CacheEntry<T> entry = getEntry(spec, key, false);
+            if (entry != null) {
+                return entry.value;
+            }
+        }
+
+        // 5. 重试多次仍然没有结果  持有锁的节点可能卡住了，降级为直接查库，不能让请求一直等下去
+        log.warn("等待缓存重建超时，直接查询数据库 key = {}", key);
+        return spec.getDbFallback().apply(id);
+    }
+
+    // 批量查库  没有配置批量查询时逐个查
+    private <ID, T> Map<ID, T> loadAll(CacheSpec<ID, T> spec, List<ID> ids) {
+        if (spec.getBatchDbFallback() != null) {
+            return spec.getBatchDbFallback().apply(ids);
+        }
+        Map<ID, T> loaded = new HashMap<>();
+        for (ID id : ids) {
+            T value = spec.getDbFallback().apply(id);
+            if (value != null) {
+                loaded.put(id, value);
+            }
+        }
+        return loaded;
+    }
+
+    // 逻辑过期的数据已经过期  拿到锁的请求去后台重建，其他请求直接用旧数据
+    private <ID, T> void refreshExpired(CacheSpec<ID, T> spec, ID id) {
+        String lockKey = spec.lockKey(id);
+        String lockToken = tryLock(lockKey);
+        if (lockToken != null) {
+            rebuildAsync(spec, id, lockKey, lockToken);
+        }
+    }
+
+    private <ID, T> void rebuildAsync(CacheSpec<ID, T> spec, ID id, String lockKey, String lockToken) {
+        try {
+            CACHE_REBUILD_EXECUTOR.submit(() -> {
+                try {
+                    loadAndCache(spec, id);
+                } catch (Exception e) {
+                    log.error("重建缓存失败 key = {}", spec.key(id), e);
+                } finally {
+                    unlock(lockKey, lockToken);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // 线程池满了 放弃这次重建，下一个请求还会再试
+            unlock(lockKey, lockToken);
+        }
+    }
+
+    // 概率性提前刷新（XFetch）：剩余有效期 ttl 满足 ttl <= delta * beta * -ln(rand) 时在后台重建
+    // delta 是这个 key 上次查库的耗时，加载越慢越要提前；离过期越远概率越接近 0，绝大多数请求不会触发
+    // 这样热点 key 在过期之前就被某一个请求刷新了，不会等到过期后让一批请求同时查库
+    private <ID, T> void refreshIfNearExpiry(CacheSpec<ID, T> spec, ID id, CacheEntry<T> entry) {
+        double beta = spec.getEarlyRefreshBeta();
+        if (beta <= 0 || entry.value == null || entry.ttlMillis < 0) {
+            return;
+        }
+        String key = spec.key(id);
+        Long cost = loadCosts.get(key, false);
+        long delta = TimeUnit.NANOSECONDS.toMillis(cost != null ? cost : spec.getStats().avgLoadNanos());
+        // 耗时不足 1ms 也按 1ms 算  否则本地数据库很快时永远不会触发
+        double threshold = Math.max(delta, 1L) * beta * -Math.log(ThreadLocalRandom.current().nextDouble());
+        if (entry.ttlMillis > threshold) {
+            return;
+        }
+        // 同一时间只让一个请求去刷新  拿不到锁说明已经有人在刷新了
+        String lockKey = spec.lockKey(id);
+        String lockToken = tryLock(lockKey);
+        if (lockToken == null) {
+            return;
+        }
+        spec.getStats().recordEarlyRefresh();
+        rebuildAsync(spec, id, lockKey, lockToken);
+    }
+
+    // TTL 随机延长  只加不减，保证至少有配置的有效期
+    private static long jitter(CacheSpec<?, ?> spec, long ttlMillis) {
+        double ratio = spec.getTtlJitter();
+        if (ratio <= 0) {
+            return ttlMillis;
+        }
+        return ttlMillis + (long) (ttlMillis * ratio * ThreadLocalRandom.current().nextDouble());
+    }
+
+    private <ID, T> CacheEntry<T> getEntry(CacheSpec<ID, T> spec, String key) {
+        return getEntry(spec, key, true);
+    }
+
+    // recordStats: 是否记录命中统计  同一次请求里的重复检查传 false
+    private <ID, T> CacheEntry<T> getEntry(CacheSpec<ID, T> spec, String key, boolean recordStats) {
+        // 开启了提前刷新的非逻辑过期缓存  需要知道剩余有效期，GET 和 PTTL 放在一个管道里发送
+        if (spec.getEarlyRefreshBeta() > 0 && spec.getMode() != CacheMode.LOGICAL_EXPIRE) {
+            byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+            List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                connection.get(rawKey);
+                connection.pTtl(rawKey);
+                return null;
+            }, null);
+            byte[] bytes = (byte[]) results.get(0);
+            Long ttlMillis = (Long) results.get(1);
+            return bytes == null ? null : decode(spec, bytes, ttlMillis == null ? -1 : ttlMillis, recordStats);
+        }
+        byte[] bytes = rawGet(key);
+        return bytes == null ? null : decode(spec, bytes, -1, recordStats);
+    }
+
+    /**
+     * 解码 Redis 里的值，并记录命中统计
+     * @param ttlMillis 剩余有效期，-1 表示未知
+     * @return null 表示无法解码（比如切换了缓存模式后读到旧格式），当作未命中处理
+     */
+    private <ID, T> CacheEntry<T> decode(CacheSpec<ID, T> spec, byte[] bytes, long ttlMillis) {
+        return decode(spec, bytes, ttlMillis, true);
+    }
+
+    private <ID, T> CacheEntry<T> decode(CacheSpec<ID, T> spec, byte[] bytes, long ttlMillis, boolean recordStats) {
+        if (bytes.length == 0) {
+            // 命中空值
+            if (recordStats) {
+                spec.getStats().recordNullHit();
+            }
+            return new CacheEntry<>(null, null, -1);
+        }
+        try {
+            CacheEntry<T> entry;
+            if (spec.getMode() == CacheMode.LOGICAL_EXPIRE) {
+                RedisData redisData = spec.getCodec().decodeLogical(bytes);
+                @SuppressWarnings("unchecked")
+                T value = (T) redisData.getData();
+                LocalDateTime expireTime = redisData.getExpireTime();
+                long remaining = Math.max(Duration.between(LocalDateTime.now(), expireTime).toMillis(), 0);
+                entry = new CacheEntry<>(value, expireTime, remaining);
+            } else {
+                entry = new CacheEntry<>(spec.getCodec().decode(bytes), null, ttlMillis);
+            }
+            if (recordStats) {
+                spec.getStats().recordHit(bytes.length);
+            }
+            return entry;
+        } catch (Exception e) {
+            log.warn("缓存值解码失败，按未命中处理 prefix = {}", spec.getKeyPrefix(), e);
+            return null;
+        }
+    }
+
+    // 返回锁的持有者标识，获取失败返回 null  所有缓存的重建锁共用 LOCK_SHOP_TTL 作为有效期
+    // 重建可能是在线程池里完成的，加锁和解锁不在同一个线程，所以不能像 SimpleRedisLock 那样用线程 id 做标识
+    private String tryLock(String lockKey) {
+        String token = UUID.randomUUID().toString(true);
+        Boolean success = stringRedisTemplate.opsForValue()
+                .setIfAbsent(lockKey, token, RedisConstants.LOCK_SHOP_TTL, TimeUnit.SECONDS);
+        return BooleanUtil.isTrue(success) ? token : null;
+    }
+
+    private void unlock(String lockKey, String token) {
+        // 标识一致才释放  防止重建超时后误删别人的锁
+        stringRedisTemplate.execute(UNLOCK_SCRIPT, Collections.singletonList(lockKey), token);
+    }
+
+    private void invalidateLocal(CacheSpec<?, ?> spec, String key) {
+        if (spec.getLocalCache() != null) {
+            spec.getLocalCache().invalidate(key);
+        }
+        if (spec.getHotKeyCache() != null) {
+            spec.getHotKeyCache().invalidate(key);
+        }
+    }
+
+    private CacheSpec<?, ?> findSpec(String key) {
+        // 按最长前缀匹配
+        CacheSpec<?, ?> found = null;
+        for (CacheSpec<?, ?> spec : specs.values()) {
+            if (key.startsWith(spec.getKeyPrefix())
+                    && (found == null || spec.getKeyPrefix().length() > found.getKeyPrefix().length())) {
+                found = spec;
+            }
+        }
+        return found;
+    }
+
+    // 缓存值是二进制的，绕过 StringRedisTemplate 的字符串序列化，直接读写字节
+    private byte[] rawGet(String key) {
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        return stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(rawKey));
+    }
+
+    private void rawSet(String key, byte[] value, Expiration expiration) {
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        stringRedisTemplate.execute((RedisCallback<Boolean>) connection ->
+                connection.set(rawKey, value, expiration, RedisStringCommands.SetOption.UPSERT));
+    }
+
+    // Redis 里读出来的一条缓存  value 为 null 表示缓存的空值，ttlMillis 为剩余有效期，-1 表示未知
+    private static class CacheEntry<T> {
+        private final T value;
+        private final LocalDateTime expireTime;
+        private final long ttlMillis;
+
+        private CacheEntry(T value, LocalDateTime expireTime, long ttlMillis) {
+            this.value = value;
+            this.expireTime = expireTime;
+            this.ttlMillis = ttlMillis;
+        }
+    }
+}
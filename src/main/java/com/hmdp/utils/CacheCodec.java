@@ -0,0 +1,22 @@
+package com.hmdp.utils;
+
+/**
+ * 缓存值的编解码方式  不同的 key 前缀可以选择不同的编码
+ * 空字节数组表示缓存的空值，编解码器不需要处理
+ */
+public interface CacheCodec<T> {
+
+    byte[] encode(T value);
+
+    T decode(byte[] bytes);
+
+    /**
+     * 编码逻辑过期的缓存值，redisData.data 是 T 类型的对象
+     */
+    byte[] encodeLogical(RedisData redisData);
+
+    /**
+     * 解码逻辑过期的缓存值，返回的 redisData.data 是 T 类型的对象
+     */
+    RedisData decodeLogical(byte[] bytes);
+}
@@ -0,0 +1,52 @@
+package com.hmdp.utils;
+
+/**
+ * 创建缓存编解码器
+ * 写入用配置的格式，读取时根据首字节识别格式，所以切换编码时不需要清空缓存，旧格式的数据照样能读，回滚也一样
+ */
+public class CacheCodecs {
+
+    private CacheCodecs() {
+    }
+
+    public static <T> CacheCodec<T> of(Class<T> type, CacheFormat format) {
+        return new MixedCacheCodec<>(new JsonCacheCodec<>(type), new BinaryCacheCodec<>(type), format);
+    }
+
+    private static class MixedCacheCodec<T> implements CacheCodec<T> {
+
+        private final CacheCodec<T> json;
+        private final CacheCodec<T> binary;
+        private final CacheCodec<T> writer;
+
+        private MixedCacheCodec(CacheCodec<T> json, CacheCodec<T> binary, CacheFormat format) {
+            this.json = json;
+            this.binary = binary;
+            this.writer = format == CacheFormat.BINARY ? binary : json;
+        }
+
+        @Override
+        public byte[] encode(T value) {
+            return writer.encode(value);
+        }
+
+        @Override
+        public T decode(byte[] bytes) {
+            return reader(bytes).decode(bytes);
+        }
+
+        @Override
+        public byte[] encodeLogical(RedisData redisData) {
+            return writer.encodeLogical(redisData);
+        }
+
+        @Override
+        public RedisData decodeLogical(byte[] bytes) {
+            return reader(bytes).decodeLogical(bytes);
+        }
+
+        private CacheCodec<T> reader(byte[] bytes) {
+            return BinaryCacheCodec.isBinary(bytes) ? binary : json;
+        }
+    }
+}
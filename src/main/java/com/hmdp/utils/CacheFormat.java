@@ -0,0 +1,15 @@
+package com.hmdp.utils;
+
+/**
+ * 缓存值写入 Redis 时使用的编码  读取时会根据首字节自动识别，两种格式可以同时存在
+ */
+public enum CacheFormat {
+    /**
+     * hutool JSON，可读性好，方便排查问题
+     */
+    JSON,
+    /**
+     * 紧凑的二进制编码，体积更小，编解码更快
+     */
+    BINARY
+}
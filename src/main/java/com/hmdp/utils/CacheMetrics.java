@@ -0,0 +1,37 @@
+package com.hmdp.utils;
+
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 按 RedisConstants 里的 key 前缀汇总的缓存指标，每个实例各自统计
+ * CacheClient 管理的缓存注册自己的 CacheStats，其他直接访问 Redis 的地方（登录 token、点赞等）按前缀取 CacheStats 自己记录
+ */
+@Component
+public class CacheMetrics {
+
+    private final Map<String, CacheStats> stats = new ConcurrentHashMap<>();
+
+    /**
+     * 取 key 前缀对应的统计，第一次访问时创建
+     */
+    public CacheStats stats(String keyPrefix) {
+        return stats.computeIfAbsent(keyPrefix, k -> new CacheStats());
+    }
+
+    public void register(String keyPrefix, CacheStats cacheStats) {
+        stats.put(keyPrefix, cacheStats);
+    }
+
+    /**
+     * 所有前缀的指标，按前缀排序
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new TreeMap<>();
+        stats.forEach((prefix, cacheStats) -> snapshot.put(prefix, cacheStats.snapshot()));
+        return snapshot;
+    }
+}
@@ -0,0 +1,19 @@
+package com.hmdp.utils;
+
+/**
+ * 缓存未命中或过期时的处理方式
+ */
+public enum CacheMode {
+    /**
+     * 未命中直接查库，只靠缓存空值防止缓存穿透
+     */
+    PASS_THROUGH,
+    /**
+     * 未命中时合并 JVM 内的并发请求，并用 Redis 互斥锁保证集群内只有一个请求查库，解决缓存击穿
+     */
+    MUTEX,
+    /**
+     * key 永不过期，过期时间保存在 value 里，过期后先返回旧数据，再异步重建
+     */
+    LOGICAL_EXPIRE
+}
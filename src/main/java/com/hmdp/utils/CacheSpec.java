@@ -0,0 +1,105 @@
+package com.hmdp.utils;
+
+import lombok.Builder;
+import lombok.Getter;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * 一类缓存数据的配置，交给 CacheClient 使用
+ * 例如店铺缓存：key 前缀 cache:shop:，id 类型 Long，查库函数 getById，JSON 编码，逻辑过期
+ */
+@Getter
+@Builder
+public class CacheSpec<ID, T> {
+
+    /**
+     * key 前缀，完整的 key 为 前缀 + id
+     */
+    private final String keyPrefix;
+
+    /**
+     * 重建缓存时互斥锁的 key 前缀
+     */
+    private final String lockKeyPrefix;
+
+    /**
+     * 缓存值的编解码方式
+     */
+    private final CacheCodec<T> codec;
+
+    /**
+     * 缓存未命中时查询数据库的函数，数据不存在返回 null
+     */
+    private final Function<ID, T> dbFallback;
+
+    /**
+     * 可选  批量查询时用一条 SQL 查出所有未命中的数据，返回 id -> 数据，不存在的 id 不放进去
+     * 没有配置时逐个调用 dbFallback
+     */
+    private final Function<Collection<ID>, Map<ID, T>> batchDbFallback;
+
+    /**
+     * 有效期  逻辑过期模式下是逻辑过期时间
+     */
+    private final Long ttl;
+
+    @Builder.Default
+    private final TimeUnit unit = TimeUnit.MINUTES;
+
+    @Builder.Default
+    private final CacheMode mode = CacheMode.MUTEX;
+
+    /**
+     * TTL 随机延长的比例，例如 0.1 表示在 [ttl, 1.1*ttl) 之间随机，避免同时写入的 key 同时过期
+     */
+    @Builder.Default
+    private final double ttlJitter = 0;
+
+    /**
+     * 提前刷新的系数，大于 0 时开启：快过期的 key 按概率在后台提前重建，越接近过期、加载越慢，概率越大
+     * 1.0 是常用值，调大会更早刷新
+     */
+    @Builder.Default
+    private final double earlyRefreshBeta = 0;
+
+    /**
+     * 数据库里不存在时是否缓存空值，空值的有效期为 CACHE_NULL_TTL
+     */
+    @Builder.Default
+    private final boolean cacheNull = true;
+
+    /**
+     * 可选  JVM 本地缓存，放在 Redis 前面
+     */
+    private final LocalCache<T> localCache;
+
+    /**
+     * 可选  判断 id 是否可能存在（例如布隆过滤器），返回 false 时直接认为不存在
+     */
+    private final Predicate<ID> existenceFilter;
+
+    /**
+     * 可选  热点 key 探测，访问次数超过阈值的 key 会放进 hotKeyCache
+     */
+    private final HotKeyDetector hotKeyDetector;
+
+    /**
+     * 热点 key 的本地缓存  有效期很短，只用来挡住热点 key 打到 Redis 的流量
+     */
+    private final LocalCache<T> hotKeyCache;
+
+    private final CacheStats stats = new CacheStats();
+
+    public String key(ID id) {
+        return keyPrefix + id;
+    }
+
+    public String lockKey(ID id) {
+        return lockKeyPrefix + id;
+    }
+}
@@ -0,0 +1,137 @@
+package com.hmdp.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 一个缓存前缀在 Redis 这一级的统计
+ */
+public class CacheStats {
+
+    // 查库耗时直方图的桶上限  单位:毫秒，最后还有一个不设上限的桶
+    private static final long[] LOAD_BUCKETS_MILLIS = {1, 2, 5, 10, 25, 50, 100, 250, 500, 1000};
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder nullHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder filtered = new LongAdder();
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder loadNanos = new LongAdder();
+    private final LongAdder[] loadBuckets = new LongAdder[LOAD_BUCKETS_MILLIS.length + 1];
+    private final LongAdder earlyRefreshes = new LongAdder();
+    // 序列化后的大小  读到和写入的值都算
+    private final LongAdder payloads = new LongAdder();
+    private final LongAdder payloadBytes = new LongAdder();
+    private final LongAccumulator maxPayloadBytes = new LongAccumulator(Long::max, 0);
+    // 不是缓存的 key（比如点赞集合）  查到和没查到都是正常结果，不算命中率，单独记次数和耗时
+    private final LongAdder lookups = new LongAdder();
+    private final LongAdder lookupsFound = new LongAdder();
+    private final LongAdder lookupNanos = new LongAdder();
+
+    public CacheStats() {
+        for (int i = 0; i < loadBuckets.length; i++) {
+            loadBuckets[i] = new LongAdder();
+        }
+    }
+
+    public void recordHit() {
+        hits.increment();
+    }
+
+    /**
+     * 命中，并记录读到的值的大小
+     */
+    public void recordHit(int bytes) {
+        hits.increment();
+        recordPayload(bytes);
+    }
+
+    public void recordNullHit() {
+        nullHits.increment();
+    }
+
+    public void recordMiss() {
+        misses.increment();
+    }
+
+    public void recordFiltered() {
+        filtered.increment();
+    }
+
+    public void recordLoad(long nanos) {
+        loads.increment();
+        loadNanos.add(nanos);
+        long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        int bucket = 0;
+        while (bucket < LOAD_BUCKETS_MILLIS.length && millis > LOAD_BUCKETS_MILLIS[bucket]) {
+            bucket++;
+        }
+        loadBuckets[bucket].increment();
+    }
+
+    public void recordEarlyRefresh() {
+        earlyRefreshes.increment();
+    }
+
+    public void recordPayload(int bytes) {
+        payloads.increment();
+        payloadBytes.add(bytes);
+        maxPayloadBytes.accumulate(bytes);
+    }
+
+    /**
+     * 一次查询  只用于不是缓存的 key，不影响命中率
+     */
+    public void recordLookup(boolean found, long nanos) {
+        lookups.increment();
+        if (found) {
+            lookupsFound.increment();
+        }
+        lookupNanos.add(nanos);
+    }
+
+    /**
+     * 平均查库耗时，还没有查过库时返回 0
+     */
+    public long avgLoadNanos() {
+        long loadCount = loads.sum();
+        return loadCount == 0 ? 0 : loadNanos.sum() / loadCount;
+    }
+
+    public Map<String, Object> snapshot() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        long hitCount = hits.sum();
+        long nullHitCount = nullHits.sum();
+        long missCount = misses.sum();
+        long total = hitCount + nullHitCount + missCount;
+        stats.put("hits", hitCount);
+        stats.put("nullHits", nullHitCount);
+        stats.put("misses", missCount);
+        // 命中空值也算命中  同样没有查库
+        stats.put("hitRatio", total == 0 ? 0 : (double) (hitCount + nullHitCount) / total);
+        stats.put("filtered", filtered.sum());
+        stats.put("loads", loads.sum());
+        stats.put("avgLoadMillis", TimeUnit.NANOSECONDS.toMillis(avgLoadNanos()));
+        // 每个桶是耗时不超过该值的次数（不累加），key 为 le_上限毫秒
+        Map<String, Long> histogram = new LinkedHashMap<>();
+        for (int i = 0; i < LOAD_BUCKETS_MILLIS.length; i++) {
+            histogram.put("le_" + LOAD_BUCKETS_MILLIS[i], loadBuckets[i].sum());
+        }
+        histogram.put("le_inf", loadBuckets[LOAD_BUCKETS_MILLIS.length].sum());
+        stats.put("loadMillisHistogram", histogram);
+        stats.put("earlyRefreshes", earlyRefreshes.sum());
+        long payloadCount = payloads.sum();
+        stats.put("avgPayloadBytes", payloadCount == 0 ? 0 : payloadBytes.sum() / payloadCount);
+        stats.put("maxPayloadBytes", maxPayloadBytes.get());
+        long lookupCount = lookups.sum();
+        if (lookupCount > 0) {
+            stats.put("lookups", lookupCount);
+            stats.put("lookupsFound", lookupsFound.sum());
+            stats.put("avgLookupMicros", TimeUnit.NANOSECONDS.toMicros(lookupNanos.sum() / lookupCount));
+        }
+        return stats;
+    }
+}
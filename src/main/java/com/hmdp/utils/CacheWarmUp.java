@@ -0,0 +1,235 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.NamedThreadFactory;
+import cn.hutool.core.thread.ThreadUtil;
+import com.hmdp.config.CacheProperties;
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.ShopMapper;
+import com.hmdp.service.IShopTypeService;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.ibatis.cursor.Cursor;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.data.geo.Point;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 启动时预热缓存：店铺类型列表、店铺缓存 cache:shop:id、店铺坐标 shop:geo:typeId
+ * 部署或 Redis 清空后，不预热的话所有店铺请求都会打到数据库
+ * 一个线程用游标流式读取 tb_shop，多个线程用管道批量写 Redis
+ * 预热完成 readyFraction 之前 WarmUpInterceptor 对请求返回 503，达到比例或超时后开始接收流量，剩下的在后台继续
+ */
+@Slf4j
+@Component
+public class CacheWarmUp implements ApplicationRunner {
+
+    private enum State {
+        DISABLED, RUNNING, DONE, FAILED
+    }
+
+    @Resource
+    private CacheProperties cacheProperties;
+
+    @Resource
+    private ShopMapper shopMapper;
+
+    @Resource
+    private IShopTypeService shopTypeService;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private TransactionTemplate transactionTemplate;
+
+    @Resource
+    private ShopGeoIndex shopGeoIndex;
+
+    private volatile State state = State.DISABLED;
+    // 是否可以接收流量  开启预热时从启动开始就是 false，Tomcat 在 run 之前就已经在接收请求了
+    private volatile boolean ready;
+    // 进度  店铺数 + 1（类型列表）
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong done = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private volatile long beginMillis;
+    private volatile long endMillis;
+
+    @PostConstruct
+    private void init() {
+        ready = !cacheProperties.getWarmUp().isEnabled();
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        CacheProperties.WarmUp config = cacheProperties.getWarmUp();
+        if (!config.isEnabled()) {
+            return;
+        }
+        state = State.RUNNING;
+        beginMillis = System.currentTimeMillis();
+        long shopCount = shopMapper.selectCount(null);
+        total.set(shopCount + 1);
+
+        Thread worker = new Thread(() -> warmUp(config), "cache-warm-up");
+        worker.setDaemon(true);
+        worker.start();
+
+        // 等到预热完成 readyFraction 或超时后再放行请求  预热失败时也放行，不能一直拒绝
+        long deadline = beginMillis + TimeUnit.SECONDS.toMillis(config.getReadyTimeoutSeconds());
+        try {
+            while (state == State.RUNNING && done.get() < total.get() * config.getReadyFraction()) {
+                if (System.currentTimeMillis() > deadline) {
+                    log.warn("缓存预热等待超时，开始接收请求，剩余部分在后台继续，当前进度 {}%", percent());
+                    return;
+                }
+                ThreadUtil.sleep(100);
+            }
+            log.info("缓存预热进度 {}%，开始接收请求", percent());
+        } finally {
+            ready = true;
+        }
+    }
+
+    /**
+     * 是否可以接收请求  没有开启预热时一直为 true
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * 预热进度
+     */
+    public Map<String, Object> status() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("state", state);
+        status.put("total", total.get());
+        status.put("done", done.get());
+        status.put("failed", failed.get());
+        status.put("percent", percent());
+        if (state != State.DISABLED) {
+            long end = state == State.RUNNING ? System.currentTimeMillis() : endMillis;
+            status.put("elapsedMillis", end - beginMillis);
+        }
+        return status;
+    }
+
+    private void warmUp(CacheProperties.WarmUp config) {
+        try {
+            // 1. 店铺类型列表  只有一条
+            shopTypeService.cacheTypeList();
+            done.incrementAndGet();
+
+            // 2. 店铺  队列满了由读游标的线程自己写，读得比写得快时自动放慢，内存里只有几批数据
+            CacheSpec<Long, Shop> spec = cacheClient.getSpec(RedisConstants.CACHE_SHOP_KEY);
+            int threads = config.getThreads();
+            ThreadPoolExecutor writers = new ThreadPoolExecutor(
+                    threads, threads, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(threads * 2),
+                    new NamedThreadFactory("cache-warm-up-", true),
+                    new ThreadPoolExecutor.CallerRunsPolicy());
+            int batchSize = config.getBatchSize();
+            try {
+                // 游标需要在事务里使用  事务结束时连接才会归还
+                transactionTemplate.execute(status -> {
+                    try (Cursor<Shop> cursor = shopMapper.scanAll()) {
+                        List<Shop> batch = new ArrayList<>(batchSize);
+                        for (Shop shop : cursor) {
+                            batch.add(shop);
+                            if (batch.size() >= batchSize) {
+                                List<Shop> full = batch;
+                                writers.execute(() -> writeBatch(spec, full));
+                                batch = new ArrayList<>(batchSize);
+                            }
+                        }
+                        if (!batch.isEmpty()) {
+                            List<Shop> last = batch;
+                            writers.execute(() -> writeBatch(spec, last));
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    return null;
+                });
+            } finally {
+                writers.shutdown();
+                writers.awaitTermination(10, TimeUnit.MINUTES);
+            }
+            // 店铺坐标是直接 GEOADD 写入的，本地空间索引不知道  写完后从 Redis 重建一次
+            shopGeoIndex.rebuild();
+            state = State.DONE;
+            endMillis = System.currentTimeMillis();
+            log.info("缓存预热完成，共 {} 条，失败 {} 条，耗时 {} ms",
+                    done.get(), failed.get(), endMillis - beginMillis);
+        } catch (Exception e) {
+            state = State.FAILED;
+            endMillis = System.currentTimeMillis();
+            log.error("缓存预热失败，当前进度 {}%", percent(), e);
+        }
+    }
+
+    private void writeBatch(CacheSpec<Long, Shop> spec, List<Shop> batch) {
+        try {
+            // 1. 店铺缓存  一个管道
+            Map<Long, Shop> values = new LinkedHashMap<>(batch.size() * 2);
+            for (Shop shop : batch) {
+                values.put(shop.getId(), shop);
+            }
+            cacheClient.setAll(spec, values);
+
+            // 2. 店铺坐标  按类型分组，每个类型一条 GEOADD，也放在一个管道里
+            Map<Long, Map<byte[], Point>> byType = new HashMap<>();
+            for (Shop shop : batch) {
+                if (shop.getX() == null || shop.getY() == null) {
+                    continue;
+                }
+                byType.computeIfAbsent(shop.getTypeId(), k -> new HashMap<>())
+                        .put(shop.getId().toString().getBytes(StandardCharsets.UTF_8), new Point(shop.getX(), shop.getY()));
+            }
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                byType.forEach((typeId, members) -> connection.geoAdd(
+                        (RedisConstants.SHOP_GEO_KEY + typeId).getBytes(StandardCharsets.UTF_8), members));
+                return null;
+            });
+            logProgress(done.getAndAdd(batch.size()), batch.size());
+        } catch (Exception e) {
+            failed.addAndGet(batch.size());
+            log.error("缓存预热写入失败，跳过 {} 个店铺", batch.size(), e);
+        }
+    }
+
+    // 每完成 10% 打印一次
+    private void logProgress(long before, int added) {
+        long all = Math.max(total.get(), 1);
+        if (before * 10 / all != (before + added) * 10 / all) {
+            log.info("缓存预热进度 {}%  {}/{}", percent(), before + added, all);
+        }
+    }
+
+    private long percent() {
+        long all = total.get();
+        return all == 0 ? 0 : done.get() * 100 / all;
+    }
+}
@@ -0,0 +1,139 @@
+package com.hmdp.utils;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * 滑动窗口内的热点 key 探测
+ * 用 Count-Min Sketch 估算每个 key 最近一段时间的访问次数，内存固定，不会随 key 的数量增长
+ * 窗口分成若干个时间片，每个时间片一个 sketch，rotate() 时丢弃最老的时间片，实现滑动窗口
+ * 估算值只会偏大不会偏小，所以真正的热点 key 不会漏掉
+ */
+public class HotKeyDetector {
+
+    // sketch 的行数（哈希函数个数）和每行的计数器个数
+    private static final int DEPTH = 4;
+    private static final int WIDTH = 2048;
+
+    private final int threshold;
+    private final int capacity;
+
+    // 每个时间片的计数  [时间片][行 * WIDTH + 列]
+    private final AtomicIntegerArray[] slices;
+    // 整个窗口的计数  等于所有时间片之和，查询时不用再累加
+    private final AtomicIntegerArray window = new AtomicIntegerArray(DEPTH * WIDTH);
+    private volatile int current = 0;
+
+    // 当前的热点 key -> 窗口内的估算访问次数
+    private final Map<String, Integer> hotKeys = new ConcurrentHashMap<>();
+
+    /**
+     * @param slices    窗口分成几个时间片，窗口长度 = 时间片个数 * rotate() 的调用间隔
+     * @param threshold 窗口内访问次数达到多少算热点
+     * @param capacity  最多同时有多少个热点 key
+     */
+    public HotKeyDetector(int slices, int threshold, int capacity) {
+        this.threshold = threshold;
+        this.capacity = capacity;
+        this.slices = new AtomicIntegerArray[slices];
+        for (int i = 0; i < slices; i++) {
+            this.slices[i] = new AtomicIntegerArray(DEPTH * WIDTH);
+        }
+    }
+
+    /**
+     * 记录一次访问
+     * @return 这个 key 当前是否是热点
+     */
+    public boolean record(String key) {
+        AtomicIntegerArray slice = slices[current];
+        long h1 = mix64(key.hashCode());
+        long h2 = mix64(h1);
+        int estimate = Integer.MAX_VALUE;
+        for (int i = 0; i < DEPTH; i++) {
+            int index = index(i, h1, h2);
+            slice.incrementAndGet(index);
+            estimate = Math.min(estimate, window.incrementAndGet(index));
+        }
+        if (estimate < threshold) {
+            return false;
+        }
+        // 热点 key 的数量有上限  满了以后新的 key 只计数，不再晋升
+        if (hotKeys.size() < capacity || hotKeys.containsKey(key)) {
+            hotKeys.put(key, estimate);
+            return true;
+        }
+        return false;
+    }
+
+    public boolean isHot(String key) {
+        return hotKeys.containsKey(key);
+    }
+
+    /**
+     * 窗口向前滑动一个时间片：丢弃最老的时间片，重新评估现有的热点 key
+     * @return 不再是热点的 key
+     */
+    public List<String> rotate() {
+        // 1. 最老的时间片就是下一个要写入的时间片  先从窗口里减掉再清零
+        int next = (current + 1) % slices.length;
+        AtomicIntegerArray oldest = slices[next];
+        for (int i = 0; i < oldest.length(); i++) {
+            int count = oldest.getAndSet(i, 0);
+            if (count != 0) {
+                window.addAndGet(i, -count);
+            }
+        }
+        current = next;
+
+        // 2. 访问量降下来的 key 不再是热点
+        List<String> demoted = new ArrayList<>();
+        for (String key : hotKeys.keySet()) {
+            int estimate = estimate(key);
+            if (estimate < threshold) {
+                hotKeys.remove(key);
+                demoted.add(key);
+            } else {
+                hotKeys.put(key, estimate);
+            }
+        }
+        return demoted;
+    }
+
+    /**
+     * 当前的热点 key，按访问次数从高到低
+     */
+    public Map<String, Integer> hotKeys() {
+        Map<String, Integer> result = new LinkedHashMap<>();
+        hotKeys.entrySet().stream()
+                .sorted(Map.Entry.<String, Integer>comparingByValue(Comparator.reverseOrder()))
+                .forEach(e -> result.put(e.getKey(), e.getValue()));
+        return result;
+    }
+
+    private int estimate(String key) {
+        long h1 = mix64(key.hashCode());
+        long h2 = mix64(h1);
+        int estimate = Integer.MAX_VALUE;
+        for (int i = 0; i < DEPTH; i++) {
+            estimate = Math.min(estimate, window.get(index(i, h1, h2)));
+        }
+        return estimate;
+    }
+
+    // 第 i 行的列号  用双重哈希模拟多个哈希函数
+    private static int index(int row, long h1, long h2) {
+        return row * WIDTH + (int) (((h1 + row * h2) & Long.MAX_VALUE) % WIDTH);
+    }
+
+    private static long mix64(long z) {
+        z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+        z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return z ^ (z >>> 33);
+    }
+}
@@ -0,0 +1,14 @@
+package com.hmdp.utils;
+
+/**
+ * 全局唯一 ID 生成器  由 hmdp.id.strategy 选择实现
+ * redis: {@link RedisIdWorkder} 秒级时间戳 + Redis 自增序列号
+ * snowflake: {@link SnowflakeIdWorker} 毫秒时间戳 + 机器号 + 毫秒内序列号，生成 ID 不访问网络
+ */
+public interface IdGenerator {
+
+    /**
+     * @param prefix 业务前缀，如 order  不同业务的 ID 可以有各自的序列号
+     */
+    long nextId(String prefix);
+}
@@ -0,0 +1,41 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 用 hutool 序列化为 JSON 字符串，和之前直接用 StringRedisTemplate 存 JSON 的格式完全一样
+ */
+public class JsonCacheCodec<T> implements CacheCodec<T> {
+
+    private final Class<T> type;
+
+    public JsonCacheCodec(Class<T> type) {
+        this.type = type;
+    }
+
+    @Override
+    public byte[] encode(T value) {
+        return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public T decode(byte[] bytes) {
+        return JSONUtil.toBean(new String(bytes, StandardCharsets.UTF_8), type);
+    }
+
+    @Override
+    public byte[] encodeLogical(RedisData redisData) {
+        return JSONUtil.toJsonStr(redisData).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public RedisData decodeLogical(byte[] bytes) {
+        RedisData redisData = JSONUtil.toBean(new String(bytes, StandardCharsets.UTF_8), RedisData.class);
+        // data 反序列化出来是 JSONObject，需要再转成具体类型
+        redisData.setData(((JSONObject) redisData.getData()).toBean(type));
+        return redisData;
+    }
+}
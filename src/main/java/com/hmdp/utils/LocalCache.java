@@ -0,0 +1,54 @@
+package com.hmdp.utils;
+
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * JVM 进程内的一级缓存（L1），放在 Redis（L2）前面，减少热点数据的网络往返和反序列化开销
+ * 同时按容量（LRU）和写入后的存活时间淘汰，命中/未命中次数由 hutool 缓存自己统计
+ */
+public class LocalCache<V> {
+
+    private final String name;
+    private final LRUCache<String, V> cache;
+
+    /**
+     * @param name     缓存名称，只用于统计展示
+     * @param capacity 最多缓存多少个 key，超出后按 LRU 淘汰
+     * @param ttlMillis 写入后多久过期 单位:毫秒
+     */
+    public LocalCache(String name, int capacity, long ttlMillis) {
+        this.name = name;
+        this.cache = CacheUtil.newLRUCache(capacity, ttlMillis);
+    }
+
+    public V get(String key) {
+        // 第二个参数为 false：读取时不刷新过期时间，保证是 "写入后 ttl 过期"，而不是 "闲置 ttl 过期"
+        return cache.get(key, false);
+    }
+
+    public void put(String key, V value) {
+        cache.put(key, value);
+    }
+
+    public void invalidate(String key) {
+        cache.remove(key);
+    }
+
+    public void invalidateAll() {
+        cache.clear();
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("name", name);
+        stats.put("size", cache.size());
+        stats.put("capacity", cache.capacity());
+        stats.put("hits", cache.getHitCount());
+        stats.put("misses", cache.getMissCount());
+        return stats;
+    }
+}
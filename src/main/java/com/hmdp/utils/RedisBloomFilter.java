@@ -0,0 +1,266 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Function;
+
+/**
+ * 基于 Redis bitmap 的布隆过滤器，用来拦截不存在的 id，解决缓存穿透
+ * 位数组保存在 Redis 里作为各节点共享的数据，同时在内存里保存一份镜像，判断时只查内存，不产生网络请求
+ * 布隆过滤器说不存在就一定不存在，说存在则有很小的概率误判
+ */
+@Slf4j
+public class RedisBloomFilter {
+
+    private final String key;
+    private final long numBits;
+    private final int numHashes;
+    private final StringRedisTemplate stringRedisTemplate;
+    // 按 id 升序分批查询数据库里已有的 id：参数是上一批最后一个 id，返回下一批 id，没有了返回空列表
+    private final Function<Long, List<Long>> idLoader;
+
+    // 内存镜像  每个 long 保存 64 位
+    private volatile AtomicLongArray bits;
+    // 还没从 Redis 加载成功前不能拦截任何请求  否则会把存在的数据也拦掉
+    private volatile boolean ready = false;
+    // 全量重建或从 Redis 加载期间新增的 id，切换内存镜像后要补进去，否则会在切换时丢失
+    private volatile Set<Long> addedDuringRebuild;
+
+    /**
+     * @param key                Redis 中保存位数组的 key
+     * @param expectedInsertions 预计元素个数
+     * @param fpp                可接受的误判率
+     * @param idLoader           从数据库分批加载全部 id，用于全量重建
+     */
+    public RedisBloomFilter(String key, long expectedInsertions, double fpp,
+                            StringRedisTemplate stringRedisTemplate, Function<Long, List<Long>> idLoader) {
+        this.key = key;
+        // 根据元素个数 n 和误判率 p 计算位数组大小 m = -n*ln(p)/(ln2)^2 和哈希函数个数 k = m/n*ln2
+        this.numBits = (long) Math.ceil(-expectedInsertions * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        this.numHashes = Math.max(1, (int) Math.round((double) numBits / expectedInsertions * Math.log(2)));
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.idLoader = idLoader;
+        this.bits = new AtomicLongArray(wordCount());
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * 判断 id 是否可能存在，只查内存
+     * @return false 表示一定不存在
+     */
+    public boolean mightContain(Long id) {
+        if (!ready || id == null) {
+            return true;
+        }
+        AtomicLongArray current = bits;
+        for (long offset : offsets(id)) {
+            if ((current.get((int) (offset >>> 6)) & (1L << offset)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 新增数据后调用，同时写入内存和 Redis
+     */
+    public void put(Long id) {
+        long[] offsets = putLocal(id);
+        // 所有位一次性用管道写入 Redis
+        byte[] rawKey = rawKey(key);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (long offset : offsets) {
+                connection.setBit(rawKey, offset, true);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 只写入内存，用于接收其他节点广播的新增 id（Redis 已经由新增的节点写过了）
+     */
+    public long[] putLocal(Long id) {
+        long[] offsets = offsets(id);
+        AtomicLongArray current = bits;
+        for (long offset : offsets) {
+            setBit(current, offset);
+        }
+        Set<Long> added = addedDuringRebuild;
+        if (added != null) {
+            added.add(id);
+        }
+        // 写的过程中内存镜像被切换了  新的镜像里可能没有，再写一次
+        AtomicLongArray latest = bits;
+        if (latest != current) {
+            for (long offset : offsets) {
+                setBit(latest, offset);
+            }
+        }
+        return offsets;
+    }
+
+    /**
+     * 从 Redis 加载位数组到内存
+     * @return false 表示 Redis 里没有完整的过滤器，需要全量重建
+     */
+    public synchronized boolean loadFromRedis() {
+        // 读取之后、切换之前新增的 id 不在读到的快照里  先记下来，切换后补上
+        addedDuringRebuild = ConcurrentHashMap.newKeySet();
+        try {
+            return doLoadFromRedis();
+        } finally {
+            addedDuringRebuild = null;
+        }
+    }
+
+    private boolean doLoadFromRedis() {
+        // meta 在全量重建完成后才写入，单独 SETBIT 产生的不完整 bitmap 不会被当成可用的过滤器
+        String meta = stringRedisTemplate.opsForValue().get(key + ":meta");
+        if (!meta().equals(meta)) {
+            return false;
+        }
+        byte[] data = stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(rawKey(key)));
+        if (data == null) {
+            return false;
+        }
+
+        // Redis bitmap 的位序：第 n 位在第 n/8 个字节里，从字节的最高位开始数
+        AtomicLongArray loaded = new AtomicLongArray(wordCount());
+        for (int i = 0; i < data.length; i++) {
+            int b = data[i] & 0xFF;
+            if (b == 0) {
+                continue;
+            }
+            for (int j = 0; j < 8; j++) {
+                if ((b & (0x80 >>> j)) != 0) {
+                    long offset = (long) i * 8 + j;
+                    if (offset < numBits) {
+                        setBit(loaded, offset);
+                    }
+                }
+            }
+        }
+        bits = loaded;
+        ready = true;
+        // 补上加载期间新增的 id  Redis 已经由新增的节点写过了，只写内存
+        Set<Long> added = addedDuringRebuild;
+        addedDuringRebuild = null;
+        for (Long id : added) {
+            putLocal(id);
+        }
+        return true;
+    }
+
+    /**
+     * 从数据库全量重建：在内存里构建新的位数组，写到临时 key 后用 RENAME 原子替换
+     * 重建可以清理掉已删除的数据，也可以在调整容量后生效
+     */
+    public synchronized void rebuild() {
+        long begin = System.currentTimeMillis();
+        addedDuringRebuild = ConcurrentHashMap.newKeySet();
+        try {
+            // 1. 分批读取全部 id 构建新的位数组
+            AtomicLongArray rebuilt = new AtomicLongArray(wordCount());
+            long count = 0;
+            Long lastId = 0L;
+            List<Long> ids;
+            while (!(ids = idLoader.apply(lastId)).isEmpty()) {
+                for (Long id : ids) {
+                    for (long offset : offsets(id)) {
+                        setBit(rebuilt, offset);
+                    }
+                }
+                count += ids.size();
+                lastId = ids.get(ids.size() - 1);
+            }
+
+            // 2. 写入临时 key 再原子替换
+            byte[] data = toRedisBytes(rebuilt);
+            byte[] tmpKey = rawKey(key + ":tmp");
+            stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+                connection.set(tmpKey, data);
+                connection.rename(tmpKey, rawKey(key));
+                return null;
+            });
+            stringRedisTemplate.opsForValue().set(key + ":meta", meta());
+
+            // 3. 切换内存镜像  并补上重建期间新增的 id
+            bits = rebuilt;
+            ready = true;
+            Set<Long> added = addedDuringRebuild;
+            addedDuringRebuild = null;
+            for (Long id : added) {
+                put(id);
+            }
+            log.info("布隆过滤器 {} 重建完成，元素 {} 个，耗时 {} ms", key, count, System.currentTimeMillis() - begin);
+        } finally {
+            addedDuringRebuild = null;
+        }
+    }
+
+    // 双重哈希 g_i(x) = h1(x) + i*h2(x) 模拟 k 个哈希函数
+    private long[] offsets(long id) {
+        long h1 = mix64(id);
+        long h2 = mix64(h1 ^ 0x9E3779B97F4A7C15L);
+        long[] offsets = new long[numHashes];
+        for (int i = 0; i < numHashes; i++) {
+            offsets[i] = ((h1 + i * h2) & Long.MAX_VALUE) % numBits;
+        }
+        return offsets;
+    }
+
+    private static long mix64(long z) {
+        z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+        z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return z ^ (z >>> 33);
+    }
+
+    private static void setBit(AtomicLongArray array, long offset) {
+        int index = (int) (offset >>> 6);
+        long mask = 1L << offset;
+        long old;
+        do {
+            old = array.get(index);
+            if ((old & mask) != 0) {
+                return;
+            }
+        } while (!array.compareAndSet(index, old, old | mask));
+    }
+
+    private byte[] toRedisBytes(AtomicLongArray array) {
+        byte[] data = new byte[(int) ((numBits + 7) / 8)];
+        for (int i = 0; i < array.length(); i++) {
+            long word = array.get(i);
+            // 只处理置为 1 的位
+            while (word != 0) {
+                long offset = ((long) i << 6) + Long.numberOfTrailingZeros(word);
+                data[(int) (offset >>> 3)] |= (byte) (0x80 >>> (offset & 7));
+                word &= word - 1;
+            }
+        }
+        return data;
+    }
+
+    private int wordCount() {
+        return (int) ((numBits + 63) >>> 6);
+    }
+
+    // 位数组大小和哈希函数个数  参数变了就需要重建
+    private String meta() {
+        return numBits + "," + numHashes;
+    }
+
+    private static byte[] rawKey(String key) {
+        return key.getBytes(StandardCharsets.UTF_8);
+    }
+}
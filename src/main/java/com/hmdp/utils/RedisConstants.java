@@ -12,14 +12,54 @@ public class RedisConstants {
 
     public static final Long CACHE_SHOP_TTL = 30L;                // 商铺缓存有效期
     public static final String CACHE_SHOP_KEY = "cache:shop:";    // 商铺缓存 cache:shop:商铺id
+    public static final int CACHE_SHOP_LOCAL_SIZE = 1024;         // 商铺本地缓存(L1)最多缓存的店铺数
+    public static final Long CACHE_SHOP_LOCAL_TTL = 60L;          // 商铺本地缓存(L1)有效期 60秒 兜底防止广播丢失时一直读到旧数据
+
+    public static final Long CACHE_USER_TTL = 30L;                // 用户缓存有效期
+    public static final String CACHE_USER_KEY = "cache:user:";    // 用户缓存 cache:user:用户id  只保存 UserDTO
+    public static final Long CACHE_BLOG_TTL = 30L;                // 笔记缓存有效期
+    public static final String CACHE_BLOG_KEY = "cache:blog:";    // 笔记缓存 cache:blog:笔记id
+
+    public static final Long CACHE_SHOP_TYPE_TTL = 30L;           // 店铺类型列表缓存有效期
+    public static final String CACHE_SHOP_TYPE_KEY = "cache:shop-type";  // 店铺类型列表缓存  JSON 数组，按 sort 排序
+
+    public static final int CACHE_HOT_KEY_SLICES = 10;            // 热点 key 探测窗口的时间片个数  每秒滑动一次，即统计最近 10 秒
+    public static final int CACHE_HOT_KEY_CAPACITY = 128;         // 每类缓存最多同时有多少个热点 key
+    public static final Long CACHE_HOT_KEY_TTL = 5L;              // 热点 key 本地缓存有效期 5秒
+
+    public static final String CACHE_INVALIDATE_TOPIC = "topic:cache:invalidate";  // 缓存失效广播频道 消息内容为被删除的 key
 
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
+    public static final String LOCK_USER_KEY = "lock:user:";
+    public static final String LOCK_BLOG_KEY = "lock:blog:";
+
+    public static final String BLOOM_SHOP_KEY = "bloom:shop";     // 店铺id布隆过滤器  位数组 bloom:shop  参数 bloom:shop:meta
+    public static final String BLOOM_USER_KEY = "bloom:user";     // 用户id布隆过滤器
+    public static final String BLOOM_BLOG_KEY = "bloom:blog";     // 笔记id布隆过滤器
+    public static final String BLOOM_ADD_TOPIC = "topic:bloom:add";  // 新增id广播频道 消息内容 布隆过滤器key:id
+    public static final String LOCK_BLOOM_KEY = "lock:";          // 全量重建布隆过滤器的锁 lock:bloom:shop
+    public static final Long LOCK_BLOOM_TTL = 10L;                // 重建锁有效期 10分钟
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_VOUCHER_KEY = "seckill:voucher:";   // 秒杀时间 hash seckill:voucher:优惠券id  begin 开始时间 end 结束时间(毫秒)
+    public static final String SECKILL_SHARDS_KEY = "seckill:shards:";     // 优惠券的库存分片数  不存在表示只有一个 seckill:stock:优惠券id
+    public static final String SECKILL_SOLD_OUT_TOPIC = "topic:seckill:sold-out";  // 秒杀券售罄/补充库存广播频道 消息内容 1:优惠券id 或 0:优惠券id
+    public static final Long SECKILL_SOLD_OUT_TTL = 5L;           // 本地售罄标记有效期 5秒 过期后放一个请求去 Redis 确认
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
+    public static final String SHOP_GEO_SNAPSHOT_KEY = "shop:geo-snapshot:";  // 按距离排好序的附近店铺快照 shop:geo-snapshot:类型id:经度:纬度  score 为距离(米)
+    public static final Long SHOP_GEO_SNAPSHOT_TTL = 60L;         // 附近店铺快照有效期 60秒
+    public static final String SHOP_GEO_REBUILD_KEY = "shop:geo-rebuild:";  // 全量重建店铺坐标时的临时 key shop:geo-rebuild:类型id  完成后替换 shop:geo:类型id
+    public static final String SHOP_GEO_DIRTY_KEY = "shop:geo-dirty";  // 全量重建期间位置有变化的店铺 id  替换完成后重新写入一次
+    public static final String LOCK_SHOP_GEO_KEY = "lock:shop-geo";    // 全量重建店铺坐标的锁  存在时说明正在重建
+    public static final Long LOCK_SHOP_GEO_TTL = 10L;                  // 重建锁有效期 10分钟
+    public static final String SHOP_GEO_TOPIC = "topic:shop:geo"; // 店铺位置变化广播频道 消息内容 节点id:类型id:店铺id[:经度:纬度]
+    public static final String SHOP_CHANGED_TOPIC = "topic:shop:changed"; // 店铺新增或修改广播频道 消息内容 店铺id
+    public static final String ID_WORKER_KEY = "id:worker:";       // 雪花算法机器号租约 id:worker:机器号  值为持有租约的实例标识
+    public static final Long ID_WORKER_TTL = 30L;                 // 机器号租约有效期 30秒 每 10秒续期一次
     public static final String USER_SIGN_KEY = "sign:";
     public static final String FOLLOW_KEY = "follow:";            // 关注set
 }
@@ -1,5 +1,9 @@
 package com.hmdp.utils;
 
+import cn.hutool.core.thread.NamedThreadFactory;
+import com.hmdp.config.IdProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
@@ -7,9 +11,17 @@ import javax.annotation.Resource;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+@Slf4j
 @Component
-public class RedisIdWorkder {
+@ConditionalOnProperty(prefix = "hmdp.id", name = "strategy", havingValue = "redis", matchIfMissing = true)
+public class RedisIdWorkder implements IdGenerator {
     // 基于 Redis 的全局唯一 ID 生成器
 
 
@@ -17,18 +29,39 @@ public class RedisIdWorkder {
     private static final long BEGIN_TIMESTAMP = 1704067200L;
     // 序列号的位数
     private static final int COUNT_BITS = 32;
+    // 号段用掉多少比例时开始预留下一段
+    private static final double PREFETCH_RATIO = 0.8;
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
 
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private IdProperties idProperties;
+
+    // 业务前缀 -> 号段
+    private final Map<String, SegmentBuffer> buffers = new ConcurrentHashMap<>();
+
+    // 在后台预留下一段号段
+    private final ExecutorService prefetchExecutor = Executors.newSingleThreadExecutor(new NamedThreadFactory("id-segment-", true));
+
 
     // prefix: 因为基于 Redis 的 incr 实现唯一 id，需要有一个 key，用 prefix 区分不同业务
+    @Override
     public long nextId(String prefix) {
         // 1. 生成时间戳  当前时间 - 初始时间戳 单位:秒
         LocalDateTime now = LocalDateTime.now();
         long nowSecond = now.toEpochSecond(ZoneOffset.UTC);
         long timestamp = nowSecond - BEGIN_TIMESTAMP;
 
+        // 号段模式  序列号从本地预留的号段里取，不用每个 ID 都访问一次 Redis
+        int segmentSize = idProperties.getSegmentSize();
+        if (segmentSize > 1) {
+            long count = buffers.computeIfAbsent(prefix, SegmentBuffer::new)
+                    .next(now.format(DATE_FORMATTER), segmentSize);
+            return timestamp << COUNT_BITS | count;
+        }
+
 
         // 2. 生成序列号
         // 不能永远使用同一个 key，需要在 key 里拼上日期信息
@@ -36,15 +69,101 @@ public class RedisIdWorkder {
         //     2. 方便通过 key 统计每天/每月/每年的订单量
         // 2.1 获取当前日期 精确到天
         //     为方便 Redis 客户端里查看 要加上 : 分隔
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
+        String date = now.format(DATE_FORMATTER);
         // 2.2 自增长
-        Long count = stringRedisTemplate.opsForValue().increment("incr:" + prefix + ":" + date);
+        Long count = stringRedisTemplate.opsForValue().increment(key(prefix, date));
 
 
         // 3. 拼接并返回
         return timestamp << COUNT_BITS | count;
     }
 
+    private static String key(String prefix, String date) {
+        return "incr:" + prefix + ":" + date;
+    }
+
+    // 一段连续的序列号 [start, end]  INCRBY size 返回的是 end
+    private static class Segment {
+        private final String date;
+        private final long start;
+        private final long end;
+        private final long prefetchAt;
+        private final AtomicLong next;
+
+        private Segment(String date, long end, int size) {
+            this.date = date;
+            this.start = end - size + 1;
+            this.end = end;
+            this.prefetchAt = start + (long) (size * PREFETCH_RATIO);
+            this.next = new AtomicLong(start);
+        }
+    }
+
+    // 一个业务前缀的号段  正在使用的一段 + 预留好的下一段
+    private class SegmentBuffer {
+        private final String prefix;
+        private volatile Segment current;
+        private volatile Segment prefetched;
+        private final AtomicBoolean prefetching = new AtomicBoolean(false);
+
+        private SegmentBuffer(String prefix) {
+            this.prefix = prefix;
+        }
+
+        private long next(String date, int size) {
+            while (true) {
+                Segment segment = current;
+                // 序列号每天重置  号段只能在预留它的那一天使用，跨天后换新的一天的号段
+                if (segment != null && segment.date.equals(date)) {
+                    long count = segment.next.getAndIncrement();
+                    if (count <= segment.end) {
+                        if (count == segment.prefetchAt) {
+                            prefetch(date, size);
+                        }
+                        return count;
+                    }
+                }
+                // 当前号段用完了  换成预留好的下一段，没有预留好就同步预留一段
+                switchSegment(segment, date, size);
+            }
+        }
+
+        private synchronized void switchSegment(Segment exhausted, String date, int size) {
+            if (current != exhausted) {
+                // 其他线程已经换过了
+                return;
+            }
+            Segment next = prefetched;
+            prefetched = null;
+            current = next != null && next.date.equals(date) ? next : reserve(date, size);
+        }
+
+        private void prefetch(String date, int size) {
+            if (!prefetching.compareAndSet(false, true)) {
+                return;
+            }
+            prefetchExecutor.execute(() -> {
+                try {
+                    Segment segment = reserve(date, size);
+                    synchronized (this) {
+                        prefetched = segment;
+                    }
+                } catch (Exception e) {
+                    // 预留失败时当前号段用完后会同步预留
+                    log.warn("预留 ID 号段失败 {}", prefix, e);
+                } finally {
+                    prefetching.set(false);
+                }
+            });
+        }
+
+        // INCRBY incr:业务前缀:日期 size
+        private Segment reserve(String date, int size) {
+            Long end = stringRedisTemplate.opsForValue().increment(key(prefix, date), size);
+            return new Segment(date, end, size);
+        }
+    }
+
     public static void main(String[] args) {
         LocalDateTime time = LocalDateTime.of(2024, 1, 1, 0, 0, 0);
         long second = time.toEpochSecond(ZoneOffset.UTC);
@@ -8,6 +8,7 @@ import org.springframework.web.servlet.HandlerInterceptor;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.nio.charset.StandardCharsets;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
@@ -18,8 +19,12 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
     // 所以我们利用 @Configuration 的 MvcConfig 获取到 StringRedisTemplate 并传进来
     private StringRedisTemplate stringRedisTemplate;
 
-    public RefreshTokenInterceptor(StringRedisTemplate stringRedisTemplate) {
+    // login:token 的命中统计
+    private CacheStats tokenStats;
+
+    public RefreshTokenInterceptor(StringRedisTemplate stringRedisTemplate, CacheMetrics cacheMetrics) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.tokenStats = cacheMetrics.stats(RedisConstants.LOGIN_USER_KEY);
     }
 
     @Override
@@ -39,8 +44,10 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
         // entries 如果结果为 null 会返回一个空 map 所以不能用 null 来判断
         if (userMap.isEmpty()) {
             // map为空 即用户信息不存在 说明未登录 放行到下一个拦截器
+            tokenStats.recordMiss();
             return true;
         }
+        tokenStats.recordHit(payloadBytes(userMap));
 
         // 下一个拦截器根据 threadlocal 里有没有用户信息来判断是否拦截  用户存在 说明已登录 放行
 
@@ -56,6 +63,16 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
         return true;
     }
 
+    // Hash 里所有字段名和值的字节数  近似于这条数据在 Redis 里的大小
+    private static int payloadBytes(Map<Object, Object> userMap) {
+        int bytes = 0;
+        for (Map.Entry<Object, Object> entry : userMap.entrySet()) {
+            bytes += entry.getKey().toString().getBytes(StandardCharsets.UTF_8).length;
+            bytes += entry.getValue().toString().getBytes(StandardCharsets.UTF_8).length;
+        }
+        return bytes;
+    }
+
     @Override
     public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex) throws Exception {
         // 线程处理完之后执行  移除用户信息 避免内存泄漏
@@ -0,0 +1,81 @@
+package com.hmdp.utils;
+
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 秒杀券已售罄的本地标记  卖完之后的请求直接在本节点拒绝，不再去 Redis 执行 Lua 脚本
+ *
+ * 某个节点第一次拿到“库存不足”时标记，并广播给其他节点；补充库存后清除标记并广播
+ * 标记有效期很短，过期后放一个请求去 Redis 确认，兜底广播丢失、补库存和售罄消息先后到达的情况
+ */
+@Component
+public class SeckillSoldOut {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    // 优惠券id -> 标记过期的时间戳
+    private final Map<Long, Long> soldOut = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    private void init() {
+        // 消息格式 1:优惠券id 表示售罄  0:优惠券id 表示补充了库存
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            String[] parts = new String(message.getBody(), StandardCharsets.UTF_8).split(":");
+            Long voucherId = Long.valueOf(parts[1]);
+            if ("1".equals(parts[0])) {
+                mark(voucherId);
+            } else {
+                soldOut.remove(voucherId);
+            }
+        }, new ChannelTopic(RedisConstants.SECKILL_SOLD_OUT_TOPIC));
+    }
+
+    public boolean isSoldOut(Long voucherId) {
+        Long expireAt = soldOut.get(voucherId);
+        if (expireAt == null) {
+            return false;
+        }
+        if (expireAt > System.currentTimeMillis()) {
+            return true;
+        }
+        soldOut.remove(voucherId, expireAt);
+        return false;
+    }
+
+    /**
+     * Lua 脚本返回库存不足  标记本节点并通知其他节点，本节点已经标记过的不再重复广播
+     */
+    public void markSoldOut(Long voucherId) {
+        if (mark(voucherId)) {
+            stringRedisTemplate.convertAndSend(RedisConstants.SECKILL_SOLD_OUT_TOPIC, "1:" + voucherId);
+        }
+    }
+
+    /**
+     * 补充了库存  清除所有节点的标记
+     */
+    public void reset(Long voucherId) {
+        soldOut.remove(voucherId);
+        stringRedisTemplate.convertAndSend(RedisConstants.SECKILL_SOLD_OUT_TOPIC, "0:" + voucherId);
+    }
+
+    // 返回之前是否没有有效的标记
+    private boolean mark(Long voucherId) {
+        long now = System.currentTimeMillis();
+        Long old = soldOut.put(voucherId, now + RedisConstants.SECKILL_SOLD_OUT_TTL * 1000);
+        return old == null || old <= now;
+    }
+}
@@ -0,0 +1,188 @@
+package com.hmdp.utils;
+
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 秒杀库存分片  热门优惠券的库存拆成多个计数器，分散到集群的不同 slot 上，不再所有请求都排队访问同一个 key
+ *
+ * 分片 i 的库存 seckill:stock:{优惠券id:i}，已下单用户 seckill:order:{优惠券id:i}，秒杀时间 seckill:voucher:{优惠券id:i}，花括号里是 hash tag
+ * 用户按 userId 固定落在一个分片，一人一单在这个分片里判断；这个分片卖完后依次从其他分片扣库存
+ * 优惠券的分片数记在 seckill:shards:优惠券id，不存在的是原来的单个 key
+ */
+@Component
+public class SeckillStockShards {
+
+    private static final DefaultRedisScript<Long> ORDER_SCRIPT;
+    private static final DefaultRedisScript<Long> TAKE_SCRIPT;
+    private static final DefaultRedisScript<Long> UNDO_SCRIPT;
+
+    static {
+        ORDER_SCRIPT = new DefaultRedisScript<>();
+        ORDER_SCRIPT.setLocation(new ClassPathResource("seckill_shard.lua"));
+        ORDER_SCRIPT.setResultType(Long.class);
+        TAKE_SCRIPT = new DefaultRedisScript<>();
+        TAKE_SCRIPT.setLocation(new ClassPathResource("seckill_take.lua"));
+        TAKE_SCRIPT.setResultType(Long.class);
+        UNDO_SCRIPT = new DefaultRedisScript<>();
+        UNDO_SCRIPT.setLocation(new ClassPathResource("seckill_undo.lua"));
+        UNDO_SCRIPT.setResultType(Long.class);
+    }
+
+    // 没有分片的优惠券多久后重新查一次  防止别的实例刚创建的分片优惠券一直被当成单个 key
+    private static final long UNSHARDED_RECHECK_MILLIS = 10000;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    // 优惠券id -> 分片数  正数表示已分片，负数表示没有分片、到这个时间戳后重新查
+    private final Map<Long, Long> shardCounts = new ConcurrentHashMap<>();
+
+    /**
+     * 把库存平均分到 shards 个分片  余数分给前面的分片
+     * @param window 秒杀时间 begin、end（毫秒），每个分片写一份
+     */
+    public void init(Long voucherId, int stock, int shards, Map<String, String> window) {
+        Map<byte[], byte[]> rawWindow = new HashMap<>();
+        window.forEach((field, value) -> rawWindow.put(bytes(field), bytes(value)));
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (int i = 0; i < shards; i++) {
+                int shardStock = stock / shards + (i < stock % shards ? 1 : 0);
+                connection.set(bytes(stockKey(voucherId, i)), bytes(String.valueOf(shardStock)));
+                if (!rawWindow.isEmpty()) {
+                    connection.hMSet(bytes(voucherKey(voucherId, i)), rawWindow);
+                }
+            }
+            connection.set(bytes(RedisConstants.SECKILL_SHARDS_KEY + voucherId), bytes(String.valueOf(shards)));
+            return null;
+        });
+        shardCounts.put(voucherId, (long) shards);
+    }
+
+    /**
+     * 补充库存  平均加到各个分片上，余数加到前面的分片
+     */
+    public void addStock(Long voucherId, int count) {
+        int shards = shards(voucherId);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (int i = 0; i < shards; i++) {
+                int shardCount = count / shards + (i < count % shards ? 1 : 0);
+                if (shardCount > 0) {
+                    connection.incrBy(bytes(stockKey(voucherId, i)), shardCount);
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 优惠券的库存分片数  1 表示没有分片
+     */
+    public int shards(Long voucherId) {
+        Long cached = shardCounts.get(voucherId);
+        if (cached != null && (cached > 0 || -cached > System.currentTimeMillis())) {
+            return cached > 0 ? cached.intValue() : 1;
+        }
+        String value = stringRedisTemplate.opsForValue().get(RedisConstants.SECKILL_SHARDS_KEY + voucherId);
+        if (value == null) {
+            shardCounts.put(voucherId, -(System.currentTimeMillis() + UNSHARDED_RECHECK_MILLIS));
+            return 1;
+        }
+        long shards = Long.parseLong(value);
+        shardCounts.put(voucherId, shards);
+        return (int) shards;
+    }
+
+    /**
+     * 扣减一个库存
+     * @return code 0 成功 1 库存不足 2 重复下单 3 尚未开始 4 已经结束，和 seckill.lua 一致；成功时 shard 是扣了库存的分片
+     */
+    public Taken tryOrder(Long voucherId, Long userId) {
+        int shards = shards(voucherId);
+        int home = (int) (userId % shards);
+        String orderKey = orderKey(voucherId, home);
+
+        // 1. 用户所在的分片  判断一人一单并扣库存，卖完时先占住这个用户
+        Long result = stringRedisTemplate.execute(ORDER_SCRIPT,
+                Arrays.asList(stockKey(voucherId, home), orderKey, voucherKey(voucherId, home)), userId.toString());
+        if (result == null || result != 1) {
+            return new Taken(result == null ? 1 : result.intValue(), home);
+        }
+
+        // 2. 这个分片卖完了  依次从后面的分片扣
+        for (int i = 1; i < shards; i++) {
+            int shard = (home + i) % shards;
+            Long taken = stringRedisTemplate.execute(TAKE_SCRIPT, Collections.singletonList(stockKey(voucherId, shard)));
+            if (taken != null && taken == 0) {
+                return new Taken(0, shard);
+            }
+        }
+
+        // 3. 全部卖完  释放占位
+        stringRedisTemplate.opsForSet().remove(orderKey, userId.toString());
+        return new Taken(1, home);
+    }
+
+    /**
+     * 撤销 tryOrder 成功扣减的库存  订单消息发送失败时调用，库存还给原来的分片，用户可以重新下单
+     */
+    public void undo(Long voucherId, Long userId, int shard) {
+        int home = (int) (userId % shards(voucherId));
+        if (shard == home) {
+            stringRedisTemplate.execute(UNDO_SCRIPT,
+                    Arrays.asList(stockKey(voucherId, shard), orderKey(voucherId, home)), userId.toString());
+            return;
+        }
+        // 两个 key 在不同的 slot  不能放在一个脚本里，先还库存再释放占位，中途失败最多是这个用户不能再下单
+        stringRedisTemplate.opsForValue().increment(stockKey(voucherId, shard));
+        stringRedisTemplate.opsForSet().remove(orderKey(voucherId, home), userId.toString());
+    }
+
+    /**
+     * tryOrder 的结果
+     */
+    public static class Taken {
+        private final int code;
+        private final int shard;
+
+        private Taken(int code, int shard) {
+            this.code = code;
+            this.shard = shard;
+        }
+
+        public int getCode() {
+            return code;
+        }
+
+        public int getShard() {
+            return shard;
+        }
+    }
+
+    private static String stockKey(Long voucherId, int shard) {
+        return RedisConstants.SECKILL_STOCK_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    private static String orderKey(Long voucherId, int shard) {
+        return RedisConstants.SECKILL_ORDER_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    private static String voucherKey(Long voucherId, int shard) {
+        return RedisConstants.SECKILL_VOUCHER_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,561 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.util.StrUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * JVM 内的店铺空间索引  附近店铺查询直接在内存里完成，不用访问 Redis
+ *
+ * 每个店铺类型一份网格索引：经纬度按 0.01 度（约 1km）划分网格，数据按网格编号排序后存在基本类型数组里
+ * 同一行的网格编号是连续的，查询时每一行只需要一次二分查找
+ * 新增、修改的店铺先记在增量表里，增量表也按网格编号排序，查询时只合并查询范围内的网格，定时从 Redis GEO 全量重建时并入网格
+ * Redis GEO 是各节点共享的数据，索引只是它在本地的副本，索引没准备好时调用方回退到 Redis 查询
+ * 坐标统一按 Redis 的 52 位 geohash 取整，距离用同一个公式计算，和 Redis 快照里的距离完全一致，游标可以在两条路径之间续用
+ */
+@Slf4j
+@Component
+public class ShopGeoIndex {
+
+    // 网格大小  单位:度
+    private static final double CELL_DEGREES = 0.01;
+    private static final long COLUMNS = (long) Math.ceil(360 / CELL_DEGREES);
+    // 和 Redis 计算距离时使用的地球半径一致，算出来的距离和 GEOSEARCH 相同
+    private static final double EARTH_RADIUS_METERS = 6372797.560856;
+    private static final double METERS_PER_DEGREE = Math.toRadians(1) * EARTH_RADIUS_METERS;
+    // Redis GEO 的纬度范围
+    private static final double GEO_LAT_MAX = 85.05112878;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    // 当前节点的标识  收到自己发出的广播时跳过
+    private final String nodeId = UUID.randomUUID().toString(true);
+
+    // 类型 id -> 索引
+    private final Map<Long, TypeIndex> indexes = new ConcurrentHashMap<>();
+
+    private volatile boolean ready = false;
+
+    @PostConstruct
+    private void init() {
+        // 订阅其他节点的店铺位置变化  消息格式 节点id:类型id:店铺id[:经度:纬度]，没有经纬度表示移除
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            String[] parts = new String(message.getBody(), StandardCharsets.UTF_8).split(":");
+            if (nodeId.equals(parts[0])) {
+                return;
+            }
+            Long typeId = Long.valueOf(parts[1]);
+            long shopId = Long.parseLong(parts[2]);
+            if (parts.length > 3) {
+                index(typeId).put(shopId, Double.parseDouble(parts[3]), Double.parseDouble(parts[4]));
+            } else {
+                index(typeId).remove(shopId);
+            }
+        }, new ChannelTopic(RedisConstants.SHOP_GEO_TOPIC));
+
+        // 启动时在后台加载  加载完成前查询返回 null，由调用方走 Redis
+        Thread loader = new Thread(this::rebuild, "shop-geo-index-loader");
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    /**
+     * 新增或移动了店铺  更新本地索引并通知其他节点
+     */
+    public void put(Long typeId, Long shopId, double lng, double lat) {
+        index(typeId).put(shopId, lng, lat);
+        stringRedisTemplate.convertAndSend(RedisConstants.SHOP_GEO_TOPIC,
+                nodeId + ":" + typeId + ":" + shopId + ":" + lng + ":" + lat);
+    }
+
+    /**
+     * 店铺从某个类型中移除（删除或者换了类型）  更新本地索引并通知其他节点
+     */
+    public void remove(Long typeId, Long shopId) {
+        index(typeId).remove(shopId);
+        stringRedisTemplate.convertAndSend(RedisConstants.SHOP_GEO_TOPIC, nodeId + ":" + typeId + ":" + shopId);
+    }
+
+    /**
+     * 查询半径内按距离从近到远排列的店铺
+     * @param afterDistance 游标  只返回排在 (afterDistance, afterId) 之后的店铺，查第一页时传 null
+     * @param afterId       游标  距离相同时按店铺 id 排序
+     * @param limit         最多返回多少个
+     * @return 索引还没加载好、或者索引里没有这个类型的店铺时返回 null，由调用方走 Redis
+     */
+    public List<Hit> search(Long typeId, double lng, double lat, double radiusMeters,
+                            Double afterDistance, Long afterId, int limit) {
+        if (!ready) {
+            return null;
+        }
+        TypeIndex index = indexes.get(typeId);
+        if (index == null || index.isEmpty()) {
+            // 不知道这个类型的店铺  可能是 Redis 里的坐标刚写入、还没重建索引，不能当成附近没有店铺
+            return null;
+        }
+        if (limit <= 0) {
+            return Collections.emptyList();
+        }
+        // 大根堆  只保留最近的 limit 个
+        PriorityQueue<Hit> heap = new PriorityQueue<>(limit + 1, Comparator.reverseOrder());
+        index.search(lng, lat, radiusMeters, hit -> {
+            if (afterDistance != null && hit.compareTo(afterDistance, afterId) <= 0) {
+                return;
+            }
+            if (heap.size() < limit) {
+                heap.add(hit);
+            } else if (hit.compareTo(heap.peek()) < 0) {
+                heap.poll();
+                heap.add(hit);
+            }
+        });
+        List<Hit> hits = new ArrayList<>(heap);
+        Collections.sort(hits);
+        return hits;
+    }
+
+    /**
+     * 按页码查询半径内按距离从近到远排列的店铺  排序规则和游标查询相同
+     * 半径内的店铺本来就要全部算一遍距离，之后用快速选择找出这一页的范围，只对这一页排序，每页的开销和页码无关
+     * @param offset 跳过前面多少个
+     * @param limit  最多返回多少个
+     * @return 索引还没加载好、或者索引里没有这个类型的店铺时返回 null，由调用方走 Redis
+     */
+    public List<Hit> searchPage(Long typeId, double lng, double lat, double radiusMeters, int offset, int limit) {
+        if (!ready) {
+            return null;
+        }
+        TypeIndex index = indexes.get(typeId);
+        if (index == null || index.isEmpty()) {
+            return null;
+        }
+        List<Hit> all = new ArrayList<>();
+        index.search(lng, lat, radiusMeters, all::add);
+        int from = Math.max(offset, 0);
+        int to = (int) Math.min((long) from + Math.max(limit, 0), all.size());
+        if (from >= to) {
+            return Collections.emptyList();
+        }
+        Hit[] hits = all.toArray(new Hit[0]);
+        // 前 from 个都排在这一页之前，[from, to) 是这一页的店铺，再只对这一页排序
+        select(hits, 0, hits.length, from);
+        select(hits, from, hits.length, to - 1);
+        Arrays.sort(hits, from, to);
+        return Arrays.asList(hits).subList(from, to);
+    }
+
+    // 快速选择  把 [low, high) 重新排列，使 a[k] 是排好序后的第 k 个，左边的都不比它大，右边的都不比它小
+    private static void select(Hit[] a, int low, int high, int k) {
+        while (high - low > 1) {
+            Hit pivot = a[low + ThreadLocalRandom.current().nextInt(high - low)];
+            // 三路划分  [low, lt) 小于 pivot，[lt, gt) 等于，[gt, high) 大于
+            int lt = low, i = low, gt = high;
+            while (i < gt) {
+                int c = a[i].compareTo(pivot);
+                if (c < 0) {
+                    swap(a, lt++, i++);
+                } else if (c > 0) {
+                    swap(a, i, --gt);
+                } else {
+                    i++;
+                }
+            }
+            if (k < lt) {
+                high = lt;
+            } else if (k >= gt) {
+                low = gt;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private static void swap(Hit[] a, int i, int j) {
+        Hit t = a[i];
+        a[i] = a[j];
+        a[j] = t;
+    }
+
+    /**
+     * 从 Redis GEO 全量重建所有类型的索引
+     */
+    @Scheduled(fixedDelay = 5 * 60 * 1000, initialDelay = 5 * 60 * 1000)
+    public void rebuild() {
+        long begin = System.currentTimeMillis();
+        try {
+            // 1. 找出所有类型的 GEO key  SCAN 不会阻塞 Redis
+            Set<String> keys = new HashSet<>();
+            ScanOptions options = ScanOptions.scanOptions().match(RedisConstants.SHOP_GEO_KEY + "*").count(100).build();
+            try (Cursor<byte[]> cursor = stringRedisTemplate.execute(
+                    (RedisCallback<Cursor<byte[]>>) connection -> connection.scan(options))) {
+                while (cursor != null && cursor.hasNext()) {
+                    keys.add(new String(cursor.next(), StandardCharsets.UTF_8));
+                }
+            }
+
+            // 2. 逐个类型重建
+            int count = 0;
+            Set<Long> typeIds = new HashSet<>();
+            for (String key : keys) {
+                String suffix = key.substring(RedisConstants.SHOP_GEO_KEY.length());
+                if (!StrUtil.isNumeric(suffix)) {
+                    continue;
+                }
+                Long typeId = Long.valueOf(suffix);
+                typeIds.add(typeId);
+                count += index(typeId).rebuild(loadFromRedis(key), begin);
+            }
+
+            // 3. Redis 里已经没有的类型  清空网格，重建期间也没有新增店铺的直接删掉
+            for (Long typeId : new ArrayList<>(indexes.keySet())) {
+                if (!typeIds.contains(typeId)) {
+                    indexes.computeIfPresent(typeId, (k, index) -> {
+                        index.rebuild(new Points(0), begin);
+                        return index.isEmpty() ? null : index;
+                    });
+                }
+            }
+            ready = true;
+            log.info("店铺空间索引重建完成，类型 {} 个，店铺 {} 个，耗时 {} ms",
+                    keys.size(), count, System.currentTimeMillis() - begin);
+        } catch (Exception e) {
+            log.error("店铺空间索引重建失败", e);
+        }
+    }
+
+    private TypeIndex index(Long typeId) {
+        return indexes.computeIfAbsent(typeId, k -> new TypeIndex());
+    }
+
+    // ZRANGE key 0 -1 WITHSCORES  GEO 的 score 就是 52 位的 geohash，直接在本地解码出坐标，不用再发 GEOPOS
+    private Points loadFromRedis(String key) {
+        Set<RedisZSetCommands.Tuple> tuples = stringRedisTemplate.execute((RedisCallback<Set<RedisZSetCommands.Tuple>>)
+                connection -> connection.zRangeWithScores(key.getBytes(StandardCharsets.UTF_8), 0, -1));
+        Points points = new Points(tuples == null ? 0 : tuples.size());
+        if (tuples != null) {
+            for (RedisZSetCommands.Tuple tuple : tuples) {
+                double[] point = decode(tuple.getScore().longValue());
+                points.add(Long.parseLong(new String(tuple.getValue(), StandardCharsets.UTF_8)), point[0], point[1]);
+            }
+        }
+        return points;
+    }
+
+    /**
+     * 计算到一个 Redis GEO 成员的距离  score 是 GEOADD 写入的 geohash，和索引使用同样的解码和距离公式
+     */
+    public static Hit hit(long shopId, double lng, double lat, long geohash) {
+        double[] point = decode(geohash);
+        return new Hit(shopId, distance(lng, lat, point[0], point[1]));
+    }
+
+    // 52 位 geohash 解码成网格中心的经纬度  纬度在偶数位，经度在奇数位，各 26 位
+    private static double[] decode(long bits) {
+        double lat = -GEO_LAT_MAX + (deinterleave(bits) + 0.5) * (GEO_LAT_MAX * 2) / (1L << 26);
+        double lng = -180 + (deinterleave(bits >>> 1) + 0.5) * 360.0 / (1L << 26);
+        return new double[]{lng, lat};
+    }
+
+    // 和 Redis GEOADD 一样编码成 52 位 geohash
+    private static long encode(double lng, double lat) {
+        long latBits = (long) ((lat + GEO_LAT_MAX) / (GEO_LAT_MAX * 2) * (1L << 26));
+        long lngBits = (long) ((lng + 180) / 360 * (1L << 26));
+        return interleave(latBits) | interleave(lngBits) << 1;
+    }
+
+    // 把低 32 位的比特分散到偶数位上
+    private static long interleave(long x) {
+        x &= 0x00000000FFFFFFFFL;
+        x = (x | (x << 16)) & 0x0000FFFF0000FFFFL;
+        x = (x | (x << 8)) & 0x00FF00FF00FF00FFL;
+        x = (x | (x << 4)) & 0x0F0F0F0F0F0F0F0FL;
+        x = (x | (x << 2)) & 0x3333333333333333L;
+        x = (x | (x << 1)) & 0x5555555555555555L;
+        return x;
+    }
+
+    // 取出偶数位上的比特
+    private static long deinterleave(long x) {
+        x &= 0x5555555555555555L;
+        x = (x | (x >>> 1)) & 0x3333333333333333L;
+        x = (x | (x >>> 2)) & 0x0F0F0F0F0F0F0F0FL;
+        x = (x | (x >>> 4)) & 0x00FF00FF00FF00FFL;
+        x = (x | (x >>> 8)) & 0x0000FFFF0000FFFFL;
+        x = (x | (x >>> 16)) & 0x00000000FFFFFFFFL;
+        return x;
+    }
+
+    private static long cell(double lng, double lat) {
+        return row(lat) * COLUMNS + column(lng);
+    }
+
+    private static long row(double lat) {
+        return (long) Math.floor((lat + 90) / CELL_DEGREES);
+    }
+
+    private static long column(double lng) {
+        return (long) Math.floor((lng + 180) / CELL_DEGREES);
+    }
+
+    private static double distance(double lng1, double lat1, double lng2, double lat2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLng = Math.toRadians(lng2 - lng1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+                + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * Math.sin(dLng / 2) * Math.sin(dLng / 2);
+        return 2 * EARTH_RADIUS_METERS * Math.asin(Math.sqrt(a));
+    }
+
+    /**
+     * 一条查询结果
+     */
+    public static class Hit implements Comparable<Hit> {
+        private final long shopId;
+        private final double distance;
+
+        private Hit(long shopId, double distance) {
+            this.shopId = shopId;
+            this.distance = distance;
+        }
+
+        public long getShopId() {
+            return shopId;
+        }
+
+        /**
+         * 距离  单位:米
+         */
+        public double getDistance() {
+            return distance;
+        }
+
+        private int compareTo(double otherDistance, Long otherId) {
+            int c = Double.compare(distance, otherDistance);
+            if (c != 0 || otherId == null) {
+                return c;
+            }
+            return Long.compare(shopId, otherId);
+        }
+
+        @Override
+        public int compareTo(Hit o) {
+            return compareTo(o.distance, o.shopId);
+        }
+    }
+
+    // 重建时使用的临时数组  自动扩容
+    private static class Points {
+        private long[] ids;
+        private double[] lngs;
+        private double[] lats;
+        private int size;
+
+        private Points(int capacity) {
+            ids = new long[Math.max(capacity, 16)];
+            lngs = new double[ids.length];
+            lats = new double[ids.length];
+        }
+
+        private void add(long id, double lng, double lat) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+                lngs = Arrays.copyOf(lngs, size * 2);
+                lats = Arrays.copyOf(lats, size * 2);
+            }
+            ids[size] = id;
+            lngs[size] = lng;
+            lats[size] = lat;
+            size++;
+        }
+    }
+
+    // 增量表里的一条变更  removed 为 true 表示从这个类型移除
+    private static class Change {
+        private final double lng;
+        private final double lat;
+        private final boolean removed;
+        private final long time = System.currentTimeMillis();
+
+        private Change(double lng, double lat, boolean removed) {
+            this.lng = lng;
+            this.lat = lat;
+            this.removed = removed;
+        }
+    }
+
+    private interface HitConsumer {
+        void accept(Hit hit);
+    }
+
+    // 一个类型的索引：不可变的网格 + 增量表
+    // 写入加锁，查询不加锁  增量表的两个 map 都是并发容器
+    private static class TypeIndex {
+        // 网格  按网格编号排序，四个数组下标一一对应
+        private volatile Grid grid = new Grid(new Points(0));
+        // 上次重建之后的变更  店铺 id -> 变更，网格里的店铺有变更时以这里为准
+        private final Map<Long, Change> changes = new ConcurrentHashMap<>();
+        // 没有被移除的变更按网格编号分组  网格编号 -> (店铺 id -> 变更)，查询时只看范围内的网格
+        private final ConcurrentSkipListMap<Long, Map<Long, Change>> changesByCell = new ConcurrentSkipListMap<>();
+
+        // 和写入 Redis 后一样取整到 geohash 网格中心  重建前后、Redis 快照里算出的距离都相同
+        private synchronized void put(long shopId, double lng, double lat) {
+            double[] point = decode(encode(lng, lat));
+            apply(shopId, new Change(point[0], point[1], false));
+        }
+
+        private synchronized void remove(long shopId) {
+            apply(shopId, new Change(0, 0, true));
+        }
+
+        // 先放进新的分组再替换 changes  并发的查询要么看到旧的位置，要么看到新的位置，不会漏掉这个店铺
+        private void apply(long shopId, Change change) {
+            if (!change.removed) {
+                changesByCell.computeIfAbsent(cell(change.lng, change.lat), k -> new ConcurrentHashMap<>()).put(shopId, change);
+            }
+            Change old = changes.put(shopId, change);
+            if (old != null) {
+                unlink(shopId, old);
+            }
+        }
+
+        // 从网格分组里去掉一条变更  分组空了就删掉
+        private void unlink(long shopId, Change change) {
+            if (change.removed) {
+                return;
+            }
+            changesByCell.computeIfPresent(cell(change.lng, change.lat), (k, group) -> {
+                group.remove(shopId, change);
+                return group.isEmpty() ? null : group;
+            });
+        }
+
+        private boolean isEmpty() {
+            return grid.size == 0 && changesByCell.isEmpty();
+        }
+
+        // 用 Redis 里的数据替换网格  重建开始之前的变更已经包含在 Redis 的数据里了，可以丢掉
+        private synchronized int rebuild(Points points, long beginMillis) {
+            grid = new Grid(points);
+            changes.entrySet().removeIf(entry -> {
+                if (entry.getValue().time >= beginMillis) {
+                    return false;
+                }
+                unlink(entry.getKey(), entry.getValue());
+                return true;
+            });
+            return points.size;
+        }
+
+        private void search(double lng, double lat, double radiusMeters, HitConsumer consumer) {
+            // 1. 网格  增量表里有变更的店铺以增量表为准
+            Grid current = grid;
+            double dLat = radiusMeters / METERS_PER_DEGREE;
+            double dLng = radiusMeters / (METERS_PER_DEGREE * Math.max(Math.cos(Math.toRadians(lat)), 1e-6));
+            long minColumn = column(lng - dLng);
+            long maxColumn = column(lng + dLng);
+            for (long row = row(lat - dLat); row <= row(lat + dLat); row++) {
+                // 同一行里网格编号连续  一次二分查找定位到起点
+                long from = row * COLUMNS + minColumn;
+                long to = row * COLUMNS + maxColumn;
+                for (int i = current.lowerBound(from); i < current.size && current.cells[i] <= to; i++) {
+                    long shopId = current.ids[i];
+                    if (changes.containsKey(shopId)) {
+                        continue;
+                    }
+                    double d = distance(lng, lat, current.lngs[i], current.lats[i]);
+                    if (d <= radiusMeters) {
+                        consumer.accept(new Hit(shopId, d));
+                    }
+                }
+                // 2. 增量表里这一行范围内的网格
+                //    同一个店铺刚移动时可能短暂出现在两个分组里，只认 changes 里的最新变更
+                for (Map<Long, Change> group : changesByCell.subMap(from, true, to, true).values()) {
+                    for (Map.Entry<Long, Change> entry : group.entrySet()) {
+                        Change change = entry.getValue();
+                        if (changes.get(entry.getKey()) != change) {
+                            continue;
+                        }
+                        double d = distance(lng, lat, change.lng, change.lat);
+                        if (d <= radiusMeters) {
+                            consumer.accept(new Hit(entry.getKey(), d));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static class Grid {
+        private final long[] cells;
+        private final long[] ids;
+        private final double[] lngs;
+        private final double[] lats;
+        private final int size;
+
+        private Grid(Points points) {
+            size = points.size;
+            // 按网格编号排序
+            Integer[] order = new Integer[size];
+            long[] unsortedCells = new long[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = i;
+                unsortedCells[i] = cell(points.lngs[i], points.lats[i]);
+            }
+            Arrays.sort(order, Comparator.comparingLong(i -> unsortedCells[i]));
+            cells = new long[size];
+            ids = new long[size];
+            lngs = new double[size];
+            lats = new double[size];
+            for (int i = 0; i < size; i++) {
+                int j = order[i];
+                cells[i] = unsortedCells[j];
+                ids[i] = points.ids[j];
+                lngs[i] = points.lngs[j];
+                lats[i] = points.lats[j];
+            }
+        }
+
+        // 第一个网格编号 >= cell 的下标
+        private int lowerBound(long cell) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (cells[mid] < cell) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+}
@@ -0,0 +1,312 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.thread.NamedThreadFactory;
+import cn.hutool.core.util.BooleanUtil;
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.ShopMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.ibatis.cursor.Cursor;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.geo.Point;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+/**
+ * 维护 Redis 里的店铺坐标 shop:geo:类型id
+ * 新增、修改店铺时增量更新：写入新的位置，换了类型的从原来类型的 key 里移除
+ * 每天从 tb_shop 全量重建一次：流式读取，分批写入临时 key，全部写完后用 Lua 脚本一次性替换正式 key
+ * 重建期间有变化的店铺记在 shop:geo-dirty 里，替换完成后按数据库里的最新数据重新写入，不会被重建时读到的旧数据覆盖
+ */
+@Slf4j
+@Component
+public class ShopGeoSync {
+
+    private enum State {
+        IDLE, RUNNING, DONE, SKIPPED, FAILED
+    }
+
+    private static final int BATCH_SIZE = 500;
+
+    private static final DefaultRedisScript<Long> SWAP_SCRIPT;
+
+    static {
+        SWAP_SCRIPT = new DefaultRedisScript<>();
+        SWAP_SCRIPT.setLocation(new ClassPathResource("shop_geo_swap.lua"));
+        SWAP_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private ShopMapper shopMapper;
+
+    @Resource
+    private TransactionTemplate transactionTemplate;
+
+    @Resource
+    private ShopGeoIndex shopGeoIndex;
+
+    // 手动触发的重建在这个线程里执行  不占用请求线程
+    private final ExecutorService rebuildExecutor = Executors.newSingleThreadExecutor(new NamedThreadFactory("shop-geo-rebuild-", true));
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private volatile State state = State.IDLE;
+    private volatile Map<String, Object> lastResult;
+    private volatile String lastError;
+
+    /**
+     * 店铺新增或修改后，更新 Redis 里的坐标和本地索引
+     * @param oldTypeId 修改前的类型，新增时传 null
+     * @param shop      数据库里的最新数据
+     */
+    public void apply(Long oldTypeId, Shop shop) {
+        Long typeId = shop.getTypeId();
+        boolean located = typeId != null && shop.getX() != null && shop.getY() != null;
+        boolean typeChanged = oldTypeId != null && !oldTypeId.equals(typeId);
+        byte[] member = shop.getId().toString().getBytes(StandardCharsets.UTF_8);
+
+        // 1. 写 Redis  一个管道：从原来的类型移除 + 写入新的位置
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            if (typeChanged) {
+                connection.zRem(geoKey(oldTypeId), member);
+            }
+            if (located) {
+                connection.geoAdd(geoKey(typeId), new Point(shop.getX(), shop.getY()), member);
+            } else if (typeId != null) {
+                connection.zRem(geoKey(typeId), member);
+            }
+            return null;
+        });
+
+        // 2. 正在全量重建  记下这个店铺，替换完成后再写一次
+        if (BooleanUtil.isTrue(stringRedisTemplate.hasKey(RedisConstants.LOCK_SHOP_GEO_KEY))) {
+            stringRedisTemplate.opsForSet().add(RedisConstants.SHOP_GEO_DIRTY_KEY, shop.getId().toString());
+            stringRedisTemplate.expire(RedisConstants.SHOP_GEO_DIRTY_KEY, RedisConstants.LOCK_SHOP_GEO_TTL, TimeUnit.MINUTES);
+        }
+
+        // 3. 本地索引
+        if (typeChanged) {
+            shopGeoIndex.remove(oldTypeId, shop.getId());
+        }
+        if (located) {
+            shopGeoIndex.put(typeId, shop.getId(), shop.getX(), shop.getY());
+        } else if (typeId != null) {
+            shopGeoIndex.remove(typeId, shop.getId());
+        }
+    }
+
+    /**
+     * 在后台执行一次全量重建  进度通过 rebuildStatus 查询
+     * @return 本节点已经有一次重建在执行时返回 false
+     */
+    public boolean rebuildAsync() {
+        if (!running.compareAndSet(false, true)) {
+            return false;
+        }
+        state = State.RUNNING;
+        lastError = null;
+        rebuildExecutor.execute(() -> {
+            try {
+                Map<String, Object> result = rebuild();
+                lastResult = result;
+                // 没拿到锁  其他节点正在重建
+                state = result == null ? State.SKIPPED : State.DONE;
+            } catch (Exception e) {
+                lastError = e.getMessage();
+                state = State.FAILED;
+            } finally {
+                running.set(false);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * 本节点最近一次手动重建的状态和结果
+     */
+    public Map<String, Object> rebuildStatus() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("state", state);
+        status.put("result", lastResult);
+        if (lastError != null) {
+            status.put("error", lastError);
+        }
+        return status;
+    }
+
+    /**
+     * 从数据库全量重建所有类型的店铺坐标  多个节点只有一个会执行
+     * @return 重建结果，没拿到锁时返回 null
+     */
+    @Scheduled(cron = "0 30 4 * * ?")
+    public Map<String, Object> rebuild() {
+        String token = UUID.randomUUID().toString(true);
+        Boolean success = stringRedisTemplate.opsForValue().setIfAbsent(
+                RedisConstants.LOCK_SHOP_GEO_KEY, token, RedisConstants.LOCK_SHOP_GEO_TTL, TimeUnit.MINUTES);
+        if (BooleanUtil.isFalse(success)) {
+            log.info("店铺坐标正在由其他节点重建，跳过");
+            return null;
+        }
+        long begin = System.currentTimeMillis();
+        try {
+            // 1. 清理上次失败留下的临时 key 和变更记录
+            List<String> leftovers = scan(RedisConstants.SHOP_GEO_REBUILD_KEY + "*");
+            leftovers.add(RedisConstants.SHOP_GEO_DIRTY_KEY);
+            stringRedisTemplate.delete(leftovers);
+
+            // 2. 流式读取 tb_shop，分批写入临时 key  游标需要在事务里使用
+            Set<Long> typeIds = new HashSet<>();
+            Long count = transactionTemplate.execute(status -> {
+                long total = 0;
+                try (Cursor<Shop> cursor = shopMapper.scanAll()) {
+                    List<Shop> batch = new ArrayList<>(BATCH_SIZE);
+                    for (Shop shop : cursor) {
+                        batch.add(shop);
+                        if (batch.size() >= BATCH_SIZE) {
+                            total += writeBatch(batch, typeIds);
+                            batch.clear();
+                        }
+                    }
+                    total += writeBatch(batch, typeIds);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return total;
+            });
+
+            // 3. 一次性替换  原来有、这次没有店铺的类型直接删除
+            List<String> keys = new ArrayList<>();
+            for (Long typeId : typeIds) {
+                keys.add(RedisConstants.SHOP_GEO_REBUILD_KEY + typeId);
+            }
+            for (Long typeId : typeIds) {
+                keys.add(RedisConstants.SHOP_GEO_KEY + typeId);
+            }
+            for (String key : scan(RedisConstants.SHOP_GEO_KEY + "*")) {
+                if (!keys.contains(key)) {
+                    keys.add(key);
+                }
+            }
+            stringRedisTemplate.execute(SWAP_SCRIPT, keys, String.valueOf(typeIds.size()));
+
+            // 4. 重建期间有变化的店铺  按数据库里的最新数据重新写一次，覆盖重建时可能读到的旧数据
+            int dirty = reapplyDirty(typeIds);
+
+            // 5. 刷新本节点的索引  其他节点等下一次定时刷新
+            shopGeoIndex.rebuild();
+
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("types", typeIds.size());
+            result.put("shops", count);
+            result.put("dirty", dirty);
+            result.put("elapsedMillis", System.currentTimeMillis() - begin);
+            log.info("店铺坐标重建完成 {}", result);
+            return result;
+        } catch (RuntimeException e) {
+            log.error("店铺坐标重建失败", e);
+            throw e;
+        } finally {
+            if (token.equals(stringRedisTemplate.opsForValue().get(RedisConstants.LOCK_SHOP_GEO_KEY))) {
+                stringRedisTemplate.delete(RedisConstants.LOCK_SHOP_GEO_KEY);
+            }
+        }
+    }
+
+    // 按类型分组，每个类型一条 GEOADD，放在一个管道里
+    private int writeBatch(List<Shop> batch, Set<Long> typeIds) {
+        Map<Long, Map<byte[], Point>> byType = new HashMap<>();
+        int count = 0;
+        for (Shop shop : batch) {
+            if (shop.getTypeId() == null || shop.getX() == null || shop.getY() == null) {
+                continue;
+            }
+            byType.computeIfAbsent(shop.getTypeId(), k -> new HashMap<>())
+                    .put(shop.getId().toString().getBytes(StandardCharsets.UTF_8), new Point(shop.getX(), shop.getY()));
+            count++;
+        }
+        if (byType.isEmpty()) {
+            return 0;
+        }
+        typeIds.addAll(byType.keySet());
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            byType.forEach((typeId, members) -> connection.geoAdd(
+                    (RedisConstants.SHOP_GEO_REBUILD_KEY + typeId).getBytes(StandardCharsets.UTF_8), members));
+            return null;
+        });
+        return count;
+    }
+
+    private int reapplyDirty(Set<Long> typeIds) {
+        Set<String> members = stringRedisTemplate.opsForSet().members(RedisConstants.SHOP_GEO_DIRTY_KEY);
+        if (members == null || members.isEmpty()) {
+            return 0;
+        }
+        List<Long> ids = members.stream().map(Long::valueOf).collect(Collectors.toList());
+        Map<Long, Shop> shops = new HashMap<>();
+        for (Shop shop : shopMapper.selectBatchIds(ids)) {
+            shops.put(shop.getId(), shop);
+        }
+        // 不知道重建时读到的是哪个类型  先从所有类型里移除，再写入最新的位置
+        Set<Long> allTypes = new HashSet<>(typeIds);
+        shops.values().forEach(shop -> {
+            if (shop.getTypeId() != null) {
+                allTypes.add(shop.getTypeId());
+            }
+        });
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Long id : ids) {
+                byte[] member = id.toString().getBytes(StandardCharsets.UTF_8);
+                for (Long typeId : allTypes) {
+                    connection.zRem(geoKey(typeId), member);
+                }
+                Shop shop = shops.get(id);
+                if (shop != null && shop.getTypeId() != null && shop.getX() != null && shop.getY() != null) {
+                    connection.geoAdd(geoKey(shop.getTypeId()), new Point(shop.getX(), shop.getY()), member);
+                }
+            }
+            return null;
+        });
+        // 只移除处理过的  处理期间新记录的留到下次
+        stringRedisTemplate.opsForSet().remove(RedisConstants.SHOP_GEO_DIRTY_KEY, members.toArray());
+        return ids.size();
+    }
+
+    private List<String> scan(String pattern) {
+        List<String> keys = new ArrayList<>();
+        ScanOptions options = ScanOptions.scanOptions().match(pattern).count(100).build();
+        try (org.springframework.data.redis.core.Cursor<byte[]> cursor = stringRedisTemplate.execute(
+                (RedisCallback<org.springframework.data.redis.core.Cursor<byte[]>>) connection -> connection.scan(options))) {
+            while (cursor != null && cursor.hasNext()) {
+                keys.add(new String(cursor.next(), StandardCharsets.UTF_8));
+            }
+        }
+        return keys;
+    }
+
+    private static byte[] geoKey(Long typeId) {
+        return (RedisConstants.SHOP_GEO_KEY + typeId).getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,353 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.ShopMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.ibatis.cursor.Cursor;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 店铺名称搜索  内存里的倒排索引，查询不访问数据库
+ *
+ * 店铺名称按字符切成单字和相邻两个字（bigram），每个词项记录包含它的店铺 id，中文名称也适用
+ * 查询词切成 bigram 后合并倒排表，命中一半以上 bigram 的店铺才算匹配（单字查询直接查单字的倒排表）
+ * 排序：完全相同 > 前缀 > 包含 > 只命中部分 bigram，同一档里按命中的 bigram 数、评分、销量从高到低
+ * 启动时从 tb_shop 加载，本节点新增、修改店铺时直接更新；其他节点新增、修改的店铺通过店铺变更广播、缓存失效广播得知，每秒批量重新加载
+ */
+@Slf4j
+@Component
+public class ShopNameIndex {
+
+    @Resource
+    private ShopMapper shopMapper;
+
+    @Resource
+    private TransactionTemplate transactionTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    private volatile Index index = new Index();
+    private volatile boolean ready = false;
+    private volatile boolean rebuilding = false;
+
+    // 需要从数据库重新加载的店铺 id
+    private final Set<Long> stale = ConcurrentHashMap.newKeySet();
+
+    @PostConstruct
+    private void init() {
+        // 店铺缓存失效说明店铺被修改了  只记下 id，在定时任务里批量加载，不阻塞消息监听线程
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            String key = new String(message.getBody(), StandardCharsets.UTF_8);
+            if (key.startsWith(RedisConstants.CACHE_SHOP_KEY)) {
+                String id = key.substring(RedisConstants.CACHE_SHOP_KEY.length());
+                if (StrUtil.isNumeric(id)) {
+                    stale.add(Long.valueOf(id));
+                }
+            }
+        }, new ChannelTopic(RedisConstants.CACHE_INVALIDATE_TOPIC));
+        // 新增店铺不会删缓存  由 saveShop、update 广播的店铺变更得知，消息内容为店铺 id
+        // 自己发出的消息也会收到，多加载一次同一个店铺，结果不变
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            String id = new String(message.getBody(), StandardCharsets.UTF_8);
+            if (StrUtil.isNumeric(id)) {
+                stale.add(Long.valueOf(id));
+            }
+        }, new ChannelTopic(RedisConstants.SHOP_CHANGED_TOPIC));
+
+        Thread loader = new Thread(this::rebuild, "shop-name-index-loader");
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    /**
+     * 新增或修改了店铺
+     */
+    public synchronized void put(Shop shop) {
+        index.put(shop);
+        if (rebuilding) {
+            // 正在重建的索引里可能是旧数据  替换后再加载一次
+            stale.add(shop.getId());
+        }
+    }
+
+    /**
+     * 按名称搜索店铺
+     * @param name 查询词，为空时返回所有店铺
+     * @param from 跳过前多少个，小于 0 时按 0 处理
+     * @param size 最多返回多少个
+     * @return 按匹配程度、评分、销量排好序的店铺 id，索引还没加载好时返回 null
+     */
+    public List<Long> search(String name, int from, int size) {
+        if (!ready) {
+            return null;
+        }
+        if (from < 0) {
+            from = 0;
+        }
+        if (size <= 0) {
+            return Collections.emptyList();
+        }
+        Index current = index;
+        String query = normalize(name);
+        // 只保留排在最前面的 from + size 个  堆顶是其中排得最靠后的
+        int keep = from + size;
+        PriorityQueue<Match> matches = new PriorityQueue<>(Math.min(keep, 1024) + 1, Match.ORDER.reversed());
+        if (query.isEmpty()) {
+            for (Doc doc : current.docs.values()) {
+                offer(matches, new Match(doc, 0, 0), keep);
+            }
+        } else {
+            // 1. 合并倒排表  统计每个店铺命中了几个词项
+            Set<Long> grams = queryGrams(query);
+            Map<Long, Integer> hits = new HashMap<>();
+            for (Long gram : grams) {
+                Set<Long> ids = current.postings.get(gram);
+                if (ids != null) {
+                    for (Long id : ids) {
+                        hits.merge(id, 1, Integer::sum);
+                    }
+                }
+            }
+            // 2. 命中太少的不要  短查询必须全部命中
+            int required = grams.size() <= 2 ? grams.size() : (grams.size() + 1) / 2;
+            for (Map.Entry<Long, Integer> entry : hits.entrySet()) {
+                Doc doc = current.docs.get(entry.getKey());
+                if (doc != null && entry.getValue() >= required) {
+                    offer(matches, new Match(doc, quality(doc.normalized, query), entry.getValue()), keep);
+                }
+            }
+        }
+        if (from >= matches.size()) {
+            return Collections.emptyList();
+        }
+        List<Match> sorted = new ArrayList<>(matches);
+        sorted.sort(Match.ORDER);
+        List<Long> ids = new ArrayList<>(size);
+        for (int i = from; i < sorted.size() && ids.size() < size; i++) {
+            ids.add(sorted.get(i).doc.id);
+        }
+        return ids;
+    }
+
+    private static void offer(PriorityQueue<Match> heap, Match match, int keep) {
+        if (heap.size() < keep) {
+            heap.add(match);
+        } else if (Match.ORDER.compare(match, heap.peek()) < 0) {
+            heap.poll();
+            heap.add(match);
+        }
+    }
+
+    /**
+     * 重新加载其他节点修改过的店铺
+     */
+    @Scheduled(fixedDelay = 1000)
+    public void refreshStale() {
+        if (!ready || rebuilding || stale.isEmpty()) {
+            return;
+        }
+        List<Long> ids = new ArrayList<>(stale);
+        stale.removeAll(ids);
+        try {
+            Map<Long, Shop> shops = new HashMap<>();
+            for (Shop shop : shopMapper.selectBatchIds(ids)) {
+                shops.put(shop.getId(), shop);
+            }
+            synchronized (this) {
+                for (Long id : ids) {
+                    Shop shop = shops.get(id);
+                    if (shop != null) {
+                        index.put(shop);
+                    } else {
+                        index.remove(id);
+                    }
+                }
+            }
+        } catch (Exception e) {
+            stale.addAll(ids);
+            log.error("店铺名称索引更新失败", e);
+        }
+    }
+
+    /**
+     * 从数据库全量重建  兜底广播消息丢失的情况
+     */
+    @Scheduled(fixedDelay = 10 * 60 * 1000, initialDelay = 10 * 60 * 1000)
+    public void rebuild() {
+        long begin = System.currentTimeMillis();
+        rebuilding = true;
+        try {
+            // 游标需要在事务里使用  流式读取，不会一次把整张表读进内存
+            Index rebuilt = transactionTemplate.execute(status -> {
+                Index result = new Index();
+                try (Cursor<Shop> cursor = shopMapper.scanAll()) {
+                    for (Shop shop : cursor) {
+                        result.put(shop);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return result;
+            });
+            synchronized (this) {
+                index = rebuilt;
+                rebuilding = false;
+            }
+            ready = true;
+            log.info("店铺名称索引重建完成，店铺 {} 个，词项 {} 个，耗时 {} ms",
+                    rebuilt.docs.size(), rebuilt.postings.size(), System.currentTimeMillis() - begin);
+        } catch (Exception e) {
+            log.error("店铺名称索引重建失败", e);
+        } finally {
+            rebuilding = false;
+        }
+    }
+
+    // 忽略大小写和空白
+    private static String normalize(String name) {
+        if (name == null) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (!Character.isWhitespace(c)) {
+                sb.append(Character.toLowerCase(c));
+            }
+        }
+        return sb.toString();
+    }
+
+    // 单字的词项就是字符本身，bigram 的词项是两个字符拼成的 32 位整数，两者不会重复
+    private static long unigram(char c) {
+        return c;
+    }
+
+    private static long bigram(char c1, char c2) {
+        return ((long) c1 << 16 | c2) + (1L << 32);
+    }
+
+    // 店铺名称的词项：所有单字 + 所有 bigram
+    private static Set<Long> docGrams(String normalized) {
+        Set<Long> grams = new LinkedHashSet<>();
+        for (int i = 0; i < normalized.length(); i++) {
+            grams.add(unigram(normalized.charAt(i)));
+            if (i + 1 < normalized.length()) {
+                grams.add(bigram(normalized.charAt(i), normalized.charAt(i + 1)));
+            }
+        }
+        return grams;
+    }
+
+    // 查询词的词项：一个字查单字，多个字查 bigram
+    private static Set<Long> queryGrams(String query) {
+        Set<Long> grams = new LinkedHashSet<>();
+        if (query.length() == 1) {
+            grams.add(unigram(query.charAt(0)));
+            return grams;
+        }
+        for (int i = 0; i + 1 < query.length(); i++) {
+            grams.add(bigram(query.charAt(i), query.charAt(i + 1)));
+        }
+        return grams;
+    }
+
+    // 匹配程度  3 完全相同 2 前缀 1 包含 0 只命中部分 bigram
+    private static int quality(String name, String query) {
+        if (name.equals(query)) {
+            return 3;
+        }
+        if (name.startsWith(query)) {
+            return 2;
+        }
+        return name.contains(query) ? 1 : 0;
+    }
+
+    private static class Doc {
+        private final long id;
+        private final String normalized;
+        private final int score;
+        private final int sold;
+        private final Set<Long> grams;
+
+        private Doc(Shop shop) {
+            this.id = shop.getId();
+            this.normalized = normalize(shop.getName());
+            this.score = shop.getScore() == null ? 0 : shop.getScore();
+            this.sold = shop.getSold() == null ? 0 : shop.getSold();
+            this.grams = docGrams(normalized);
+        }
+    }
+
+    private static class Match {
+        private static final Comparator<Match> ORDER = Comparator
+                .comparingInt((Match m) -> m.quality).reversed()
+                .thenComparing(Comparator.comparingInt((Match m) -> m.matched).reversed())
+                .thenComparing(Comparator.comparingInt((Match m) -> m.doc.score).reversed())
+                .thenComparing(Comparator.comparingInt((Match m) -> m.doc.sold).reversed())
+                .thenComparingLong(m -> m.doc.id);
+
+        private final Doc doc;
+        private final int quality;
+        private final int matched;
+
+        private Match(Doc doc, int quality, int matched) {
+            this.doc = doc;
+            this.quality = quality;
+            this.matched = matched;
+        }
+    }
+
+    // 店铺 + 倒排表  重建时整体替换
+    private static class Index {
+        private final Map<Long, Doc> docs = new ConcurrentHashMap<>();
+        private final Map<Long, Set<Long>> postings = new ConcurrentHashMap<>();
+
+        private void put(Shop shop) {
+            remove(shop.getId());
+            Doc doc = new Doc(shop);
+            for (Long gram : doc.grams) {
+                postings.computeIfAbsent(gram, k -> ConcurrentHashMap.newKeySet()).add(doc.id);
+            }
+            docs.put(doc.id, doc);
+        }
+
+        private void remove(Long id) {
+            Doc old = docs.remove(id);
+            if (old == null) {
+                return;
+            }
+            for (Long gram : old.grams) {
+                Set<Long> ids = postings.get(gram);
+                if (ids != null) {
+                    ids.remove(id);
+                    if (ids.isEmpty()) {
+                        postings.remove(gram);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * 同一个 JVM 内对同一个 key 的并发加载只执行一次
+ * 第一个到达的线程负责加载，其他线程等待它的结果，而不是各自去查数据库
+ */
+public class SingleFlight<K, V> {
+
+    private final ConcurrentHashMap<K, CompletableFuture<V>> calls = new ConcurrentHashMap<>();
+
+    public V execute(K key, Supplier<V> loader) {
+        CompletableFuture<V> future = new CompletableFuture<>();
+        CompletableFuture<V> inFlight = calls.putIfAbsent(key, future);
+        if (inFlight != null) {
+            // 已经有线程在加载了 等它的结果
+            return await(inFlight);
+        }
+
+        try {
+            V value = loader.get();
+            future.complete(value);
+            return value;
+        } catch (Throwable e) {
+            // 等待的线程也要收到异常 不能让它们一直阻塞  Error 和偷偷抛出的受检异常也一样
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            // 加载完立刻移除 下一次未命中重新发起加载
+            calls.remove(key, future);
+        }
+    }
+
+    private V await(CompletableFuture<V> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            // 把加载线程抛出的原始异常透传出去
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.thread.ThreadUtil;
+import cn.hutool.core.util.BooleanUtil;
+import cn.hutool.core.util.RandomUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+import java.util.function.LongSupplier;
+
+/**
+ * 雪花算法 ID 生成器  生成 ID 时不访问网络，只有启动时租用机器号、之后定时续期要访问 Redis
+ *
+ * 0 | 1 | 40 位毫秒时间戳 | 10 位机器号 | 12 位毫秒内序列号
+ * 第 62 位固定为 1：RedisIdWorkder 的 ID 是 秒级时间戳 << 32，到 2058 年之前都小于 2^62，两种方式生成的 ID 不会重复，可以随时切换
+ *
+ * 机器号租约 id:worker:机器号 用 SET NX EX 抢占，每 10 秒续期；续期失败、或者太久没有续期成功时不再生成 ID，防止和接手这个机器号的实例重复
+ * 时钟回拨几毫秒以内时等待追上，回拨更多时拒绝生成
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(prefix = "hmdp.id", name = "strategy", havingValue = "snowflake")
+public class SnowflakeIdWorker implements IdGenerator {
+
+    // 初始时间戳 2024-01-01 00:00:00 UTC，和 RedisIdWorkder 一致  单位:毫秒
+    private static final long BEGIN_TIMESTAMP = 1704067200000L;
+    private static final int WORKER_BITS = 10;
+    private static final int SEQUENCE_BITS = 12;
+    private static final long MAX_WORKER_ID = (1L << WORKER_BITS) - 1;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+    private static final long SNOWFLAKE_FLAG = 1L << 62;
+    // 允许等待的时钟回拨  超过就拒绝生成
+    private static final long MAX_BACKWARD_MILLIS = 5;
+
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT;
+
+    static {
+        RENEW_SCRIPT = new DefaultRedisScript<>();
+        RENEW_SCRIPT.setLocation(new ClassPathResource("id_worker_renew.lua"));
+        RENEW_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    // 当前实例的标识  租约的值
+    private final String token = UUID.randomUUID().toString(true);
+
+    private volatile long workerId = -1;
+    // 租约在本地看来的过期时间  留出一次续期间隔的余量，保证早于 Redis 里的租约过期
+    private volatile long leaseExpireAt;
+
+    private long lastTimestamp = -1;
+    private long sequence = 0;
+
+    // 时钟和休眠  测试时替换成可控的实现
+    LongSupplier clock = System::currentTimeMillis;
+    LongConsumer sleeper = ThreadUtil::sleep;
+
+    @PostConstruct
+    private void init() {
+        lease();
+        log.info("雪花算法机器号 {}", workerId);
+    }
+
+    /**
+     * 续期机器号租约  租约已经丢了就重新租一个
+     */
+    @Scheduled(fixedDelay = 10000)
+    public void renew() {
+        try {
+            Long renewed = stringRedisTemplate.execute(RENEW_SCRIPT,
+                    Collections.singletonList(RedisConstants.ID_WORKER_KEY + workerId),
+                    token, String.valueOf(RedisConstants.ID_WORKER_TTL));
+            if (renewed != null && renewed == 1) {
+                leaseExpireAt = leaseDeadline();
+                return;
+            }
+            log.warn("雪花算法机器号 {} 的租约已失效，重新租用", workerId);
+            lease();
+        } catch (Exception e) {
+            log.error("雪花算法机器号 {} 续期失败", workerId, e);
+        }
+    }
+
+    @PreDestroy
+    private void release() {
+        String key = RedisConstants.ID_WORKER_KEY + workerId;
+        if (token.equals(stringRedisTemplate.opsForValue().get(key))) {
+            stringRedisTemplate.delete(key);
+        }
+    }
+
+    // prefix: 雪花算法的 ID 全局唯一，不需要按业务区分
+    @Override
+    public synchronized long nextId(String prefix) {
+        if (clock.getAsLong() >= leaseExpireAt) {
+            throw new IllegalStateException("雪花算法机器号租约已过期，暂时无法生成 ID");
+        }
+        long timestamp = clock.getAsLong();
+        // 1. 时钟回拨  回拨不多时等时钟追上，否则可能生成重复的 ID，直接拒绝
+        if (timestamp < lastTimestamp) {
+            long backward = lastTimestamp - timestamp;
+            if (backward > MAX_BACKWARD_MILLIS) {
+                throw new IllegalStateException("时钟回拨 " + backward + " ms，拒绝生成 ID");
+            }
+            sleeper.accept(backward);
+            timestamp = waitUntilAfter(lastTimestamp - 1);
+        }
+        // 2. 同一毫秒内序列号递增  用完了等到下一毫秒
+        if (timestamp == lastTimestamp) {
+            sequence = (sequence + 1) & SEQUENCE_MASK;
+            if (sequence == 0) {
+                timestamp = waitUntilAfter(lastTimestamp);
+            }
+        } else {
+            sequence = 0;
+        }
+        lastTimestamp = timestamp;
+
+        // 3. 拼接并返回
+        return SNOWFLAKE_FLAG
+                | (timestamp - BEGIN_TIMESTAMP) << (WORKER_BITS + SEQUENCE_BITS)
+                | workerId << SEQUENCE_BITS
+                | sequence;
+    }
+
+    // 从随机位置开始依次尝试  多个实例同时启动时不会都去抢 0 号
+    private synchronized void lease() {
+        long start = RandomUtil.randomLong(MAX_WORKER_ID + 1);
+        for (long i = 0; i <= MAX_WORKER_ID; i++) {
+            long id = (start + i) & MAX_WORKER_ID;
+            Boolean success = stringRedisTemplate.opsForValue().setIfAbsent(
+                    RedisConstants.ID_WORKER_KEY + id, token, RedisConstants.ID_WORKER_TTL, TimeUnit.SECONDS);
+            if (BooleanUtil.isTrue(success)) {
+                workerId = id;
+                leaseExpireAt = leaseDeadline();
+                return;
+            }
+        }
+        throw new IllegalStateException("没有可用的雪花算法机器号，" + (MAX_WORKER_ID + 1) + " 个都已被占用");
+    }
+
+    private long leaseDeadline() {
+        return clock.getAsLong() + TimeUnit.SECONDS.toMillis(RedisConstants.ID_WORKER_TTL) - 10000;
+    }
+
+    private long waitUntilAfter(long timestamp) {
+        long now = clock.getAsLong();
+        while (now <= timestamp) {
+            now = clock.getAsLong();
+        }
+        return now;
+    }
+}
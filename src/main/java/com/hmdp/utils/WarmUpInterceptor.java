@@ -0,0 +1,30 @@
+package com.hmdp.utils;
+
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * 缓存预热完成 readyFraction 之前拒绝请求  返回 503，负载均衡会把请求发到其他实例
+ * Tomcat 在 ApplicationRunner 执行前就开始接收请求了，只靠启动流程等待拦不住流量
+ */
+public class WarmUpInterceptor implements HandlerInterceptor {
+
+    private final CacheWarmUp cacheWarmUp;
+
+    public WarmUpInterceptor(CacheWarmUp cacheWarmUp) {
+        this.cacheWarmUp = cacheWarmUp;
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        if (cacheWarmUp.isReady()) {
+            return true;
+        }
+        // 503 表示暂时不可用  Retry-After 告诉调用方过一会儿再试
+        response.setStatus(503);
+        response.setHeader("Retry-After", "1");
+        return false;
+    }
+}
@@ -0,0 +1,6 @@
+-- 续期雪花算法的机器号租约  只有租约还是自己的才续期
+-- KEYS[1] id:worker:机器号  ARGV[1] 本实例的标识  ARGV[2] 租约有效期(秒)
+if (redis.call('get', KEYS[1]) == ARGV[1]) then
+    return redis.call('expire', KEYS[1], ARGV[2])
+end
+return 0
@@ -11,9 +11,25 @@ local orderId = ARGV[3]
 local stockKey = 'seckill:stock:' .. voucherId
 -- 已下单的用户 set
 local orderKey = 'seckill:order:' .. voucherId
+-- 秒杀时间 hash  begin 开始时间 end 结束时间，单位毫秒
+local voucherKey = 'seckill:voucher:' .. voucherId
 
 
 -- 脚本业务开始
+-- 0. 判断是否在秒杀时间内  用 Redis 的时钟，不依赖各个应用实例的时间；没有这个 hash 的优惠券不判断
+local window = redis.call('hmget', voucherKey, 'begin', 'end')
+if (window[1] or window[2]) then
+    local time = redis.call('time')
+    local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+    if (window[1] and now < tonumber(window[1])) then
+        -- 秒杀尚未开始，返回 3
+        return 3
+    end
+    if (window[2] and now > tonumber(window[2])) then
+        -- 秒杀已经结束，返回 4
+        return 4
+    end
+end
 -- 1. 判断库存是否充足
 if (tonumber(redis.call('get', stockKey)) <= 0) then
     -- 库存不足，返回 1
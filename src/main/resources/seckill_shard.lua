@@ -0,0 +1,34 @@
+-- 分片库存模式下的秒杀  只访问用户所在分片的 key，同一个分片的 key 带相同的 hash tag，在集群里落在同一个 slot
+-- KEYS[1] 分片库存 seckill:stock:{优惠券id:分片号}  KEYS[2] 分片的已下单用户 seckill:order:{优惠券id:分片号}
+-- KEYS[3] 秒杀时间 seckill:voucher:{优惠券id:分片号}，每个分片一份，和分片的其他 key 在同一个 slot
+-- ARGV[1] 用户id
+local stockKey = KEYS[1]
+local orderKey = KEYS[2]
+local voucherKey = KEYS[3]
+local userId = ARGV[1]
+
+-- 0. 判断是否在秒杀时间内  和 seckill.lua 一致，3 尚未开始 4 已经结束
+local window = redis.call('hmget', voucherKey, 'begin', 'end')
+if (window[1] or window[2]) then
+    local time = redis.call('time')
+    local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+    if (window[1] and now < tonumber(window[1])) then
+        return 3
+    end
+    if (window[2] and now > tonumber(window[2])) then
+        return 4
+    end
+end
+-- 1. 同一个用户总是落在同一个分片，在这里判断就能保证一人一单
+if (redis.call('sismember', orderKey, userId) == 1) then
+    -- 重复下单，返回 2
+    return 2
+end
+-- 2. 不管库存够不够都先占位  分片卖完时调用方去其他分片扣库存，期间同一个用户的其他请求会被当成重复下单
+redis.call('sadd', orderKey, userId)
+if (tonumber(redis.call('get', stockKey) or '0') <= 0) then
+    -- 这个分片卖完了，返回 1
+    return 1
+end
+redis.call('incrby', stockKey, -1)
+return 0
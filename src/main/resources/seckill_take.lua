@@ -0,0 +1,8 @@
+-- 分片库存模式下，用户所在的分片卖完后从其他分片扣一个库存
+-- KEYS[1] 分片库存 seckill:stock:{优惠券id:分片号}
+if (tonumber(redis.call('get', KEYS[1]) or '0') <= 0) then
+    -- 库存不足，返回 1
+    return 1
+end
+redis.call('incrby', KEYS[1], -1)
+return 0
@@ -0,0 +1,7 @@
+-- 分片库存模式下扣减成功但订单消息发送失败  把库存还回去，并释放用户的一人一单占位
+-- KEYS[1] 扣了库存的分片 seckill:stock:{优惠券id:分片号}  KEYS[2] 用户所在分片的已下单用户 seckill:order:{优惠券id:分片号}
+-- 两个 key 必须在同一个分片，不在同一个分片时由调用方分别执行
+-- ARGV[1] 用户id
+redis.call('incrby', KEYS[1], 1)
+redis.call('srem', KEYS[2], ARGV[1])
+return 0
@@ -0,0 +1,11 @@
+-- 全量重建店铺坐标后，一次性把临时 key 换成正式 key
+-- KEYS[1..n] 临时 key  KEYS[n+1..2n] 对应的正式 key  之后的 key 是已经没有店铺的类型，直接删除
+-- ARGV[1] n
+local n = tonumber(ARGV[1])
+for i = 1, n do
+    redis.call('rename', KEYS[i], KEYS[n + i])
+end
+for i = 2 * n + 1, #KEYS do
+    redis.call('del', KEYS[i])
+end
+return n
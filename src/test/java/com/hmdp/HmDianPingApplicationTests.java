@@ -1,21 +1,48 @@
 package com.hmdp;
 
+import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
+import com.hmdp.config.IdProperties;
+import com.hmdp.dto.GeoScrollResult;
+import com.hmdp.entity.Blog;
 import com.hmdp.entity.Shop;
+import com.hmdp.service.IBlogService;
 import com.hmdp.service.IShopService;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.RedisIdWorkder;
+import com.hmdp.utils.SeckillStockShards;
+import com.hmdp.utils.ShopGeoIndex;
+import com.hmdp.utils.ShopNameIndex;
+import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.geo.Distance;
+import org.springframework.data.geo.GeoResults;
 import org.springframework.data.geo.Point;
 import org.springframework.data.redis.connection.RedisGeoCommands;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.domain.geo.GeoReference;
+import org.springframework.util.StreamUtils;
 
 import javax.annotation.Resource;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongConsumer;
 import java.util.stream.Collectors;
 
 @SpringBootTest
@@ -32,6 +59,21 @@ class HmDianPingApplicationTests {
     @Resource
     private IShopService shopService;
 
+    @Resource
+    private IBlogService blogService;
+
+    @Resource
+    private SeckillStockShards seckillStockShards;
+
+    @Resource
+    private IdProperties idProperties;
+
+    @Resource
+    private ShopGeoIndex shopGeoIndex;
+
+    @Resource
+    private ShopNameIndex shopNameIndex;
+
 
     @Test
     void loadShopGeoData() {
@@ -60,34 +102,288 @@ class HmDianPingApplicationTests {
 
 
     @Test
-    void testIdWorker1() {
-        long begin = System.currentTimeMillis();
-        for (int i = 0; i < 30000; i++) {
-            long id = redisIdWorkder.nextId("order");
-            System.out.println("id = " + id);
+    void benchmarkShopGeoPaging() {
+        // 在一个不存在的类型下新建 1000 个附近的店铺，对比两种分页方式第 1 ~ 100 页的耗时
+        // 店铺通过 saveShop 写入，和线上一样进入 Redis 坐标和本地索引，游标分页走的是本地索引
+        int typeId = 9999;
+        String geoKey = RedisConstants.SHOP_GEO_KEY + typeId;
+        double x = 120.149192, y = 30.316078;
+        Random random = new Random(1);
+        List<Long> shopIds = new ArrayList<>();
+        try {
+            for (int i = 0; i < 1000; i++) {
+                Shop shop = new Shop();
+                shop.setName("benchmark-" + i);
+                shop.setTypeId((long) typeId);
+                shop.setImages("");
+                shop.setAddress("benchmark");
+                shop.setX(x + (random.nextDouble() - 0.5) * 0.06);
+                shop.setY(y + (random.nextDouble() - 0.5) * 0.06);
+                shop.setSold(0);
+                shop.setComments(0);
+                shop.setScore(0);
+                shopService.saveShop(shop);
+                shopIds.add(shop.getId());
+            }
+            shopGeoIndex.rebuild();
+
+            // 旧的方式：GEOSEARCH limit(end) 再跳过前面的页
+            long[] oldCost = new long[101];
+            for (int page = 1; page <= 100; page++) {
+                long begin = System.nanoTime();
+                GeoResults<RedisGeoCommands.GeoLocation<String>> results = stringRedisTemplate.opsForGeo().search(
+                        geoKey, GeoReference.fromCoordinate(x, y), new Distance(5000),
+                        RedisGeoCommands.GeoSearchCommandArgs.newGeoSearchArgs().includeDistance().limit(page * 10L));
+                results.getContent().stream().skip((page - 1) * 10L).count();
+                oldCost[page] = System.nanoTime() - begin;
+            }
+
+            // 游标方式：每页从上一页最后一个店铺之后开始
+            // 按页码查询：本地索引只对这一页排序  两种方式同一页返回的店铺应该完全相同
+            // 第一遍预热，之后 5 遍计时，每页取最小值去掉 GC、线程调度带来的抖动
+            long[] scrollCost = new long[101];
+            long[] offsetCost = new long[101];
+            Arrays.fill(scrollCost, Long.MAX_VALUE);
+            Arrays.fill(offsetCost, Long.MAX_VALUE);
+            for (int round = 0; round <= 5; round++) {
+                Set<Long> seen = new HashSet<>();
+                Double lastDistance = null;
+                Long lastId = null;
+                for (int page = 1; page <= 100; page++) {
+                    long begin = System.nanoTime();
+                    GeoScrollResult result = (GeoScrollResult) shopService
+                            .scrollShopByType(typeId, x, y, lastDistance, lastId).getData();
+                    long scrolled = System.nanoTime() - begin;
+                    begin = System.nanoTime();
+                    List<?> offsetPage = (List<?>) shopService.queryShopByType(typeId, page, x, y, null).getData();
+                    long offsetted = System.nanoTime() - begin;
+                    if (round > 0) {
+                        scrollCost[page] = Math.min(scrollCost[page], scrolled);
+                        offsetCost[page] = Math.min(offsetCost[page], offsetted);
+                    }
+
+                    Assertions.assertEquals(10, result.getList().size(), "第 " + page + " 页");
+                    for (Object shop : result.getList()) {
+                        Assertions.assertTrue(seen.add(((Shop) shop).getId()), "第 " + page + " 页返回了重复的店铺");
+                    }
+                    Assertions.assertEquals(ids(result.getList()), ids(offsetPage), "第 " + page + " 页两种方式返回的店铺不同");
+                    lastDistance = result.getLastDistance();
+                    lastId = result.getLastId();
+                }
+                Assertions.assertEquals(1000, seen.size());
+                Assertions.assertTrue(seen.containsAll(shopIds));
+            }
+
+            System.out.printf("%6s %14s %14s %14s%n", "page", "geosearch(us)", "scroll(us)", "offset(us)");
+            for (int page : new int[]{1, 10, 25, 50, 75, 100}) {
+                System.out.printf("%6d %14d %14d %14d%n", page, oldCost[page] / 1000, scrollCost[page] / 1000, offsetCost[page] / 1000);
+            }
+            // 每页的代价不随页码增长  第 91 ~ 100 页的总耗时不超过第 1 ~ 10 页的 2 倍
+            assertFlat("游标", scrollCost);
+            assertFlat("按页码", offsetCost);
+        } finally {
+            shopService.removeByIds(shopIds);
+            for (Long id : shopIds) {
+                shopGeoIndex.remove((long) typeId, id);
+            }
+            stringRedisTemplate.delete(geoKey);
+            stringRedisTemplate.delete(shopIds.stream().map(id -> RedisConstants.CACHE_SHOP_KEY + id).collect(Collectors.toList()));
+            shopNameIndex.rebuild();
         }
-        long end = System.currentTimeMillis();
-        System.out.println("time = " + (end - begin));
+    }
+
+
+    private static List<Long> ids(List<?> shops) {
+        return shops.stream().map(shop -> ((Shop) shop).getId()).collect(Collectors.toList());
+    }
+
+    private static void assertFlat(String name, long[] cost) {
+        long head = Arrays.stream(cost, 1, 11).sum();
+        long tail = Arrays.stream(cost, 91, 101).sum();
+        Assertions.assertTrue(tail <= head * 2,
+                name + "分页第 91 ~ 100 页耗时 " + tail / 1000 + "us，第 1 ~ 10 页 " + head / 1000 + "us");
     }
 
     @Test
-    void testIdWorker2() throws InterruptedException {
-        CountDownLatch latch = new CountDownLatch(300);
+    void benchmarkBlogPaging() {
+        // 给一个不存在的用户生成 10000 篇笔记，对比 OFFSET 分页和游标分页第 1 页、第 1000 页的耗时
+        long userId = 99999999L;
+        List<Blog> blogs = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            Blog blog = new Blog();
+            blog.setShopId(1L);
+            blog.setUserId(userId);
+            blog.setTitle("benchmark " + i);
+            blog.setImages("");
+            blog.setContent("");
+            blogs.add(blog);
+        }
+        blogService.saveBatch(blogs, 1000);
+        try {
+            // 第 1000 页的游标  即第 9990 篇笔记的 id，提前查好，不算在耗时里
+            Long lastId = blogService.query().eq("user_id", userId).orderByAsc("id")
+                    .last("LIMIT 9989, 1").one().getId();
+
+            // OFFSET 分页和游标分页的第 1 页、第 1000 页应该是同样的 10 篇笔记
+            List<Long> offsetFirst = blogIds(blogService.query().eq("user_id", userId).orderByAsc("id")
+                    .page(new Page<>(1, 10)).getRecords());
+            List<Long> offsetLast = blogIds(blogService.query().eq("user_id", userId).orderByAsc("id")
+                    .page(new Page<>(1000, 10)).getRecords());
+            Assertions.assertEquals(10, offsetFirst.size());
+            Assertions.assertEquals(10, offsetLast.size());
+            Assertions.assertEquals(offsetFirst, blogIds(blogService.queryBlogOfUser(userId, 1, null).getData()));
+            Assertions.assertEquals(offsetLast, blogIds(blogService.queryBlogOfUser(userId, 1, lastId).getData()));
+
+            // 每种方式取 20 次里最快的一次  去掉 GC、线程调度带来的抖动
+            int rounds = 20;
+            long[] offsetCost = {Long.MAX_VALUE, Long.MAX_VALUE};
+            long[] keysetCost = {Long.MAX_VALUE, Long.MAX_VALUE};
+            for (int i = 0; i < rounds; i++) {
+                // OFFSET 分页 + COUNT  旧的写法
+                long begin = System.nanoTime();
+                blogService.query().eq("user_id", userId).orderByAsc("id").page(new Page<>(1, 10));
+                offsetCost[0] = Math.min(offsetCost[0], System.nanoTime() - begin);
+                begin = System.nanoTime();
+                blogService.query().eq("user_id", userId).orderByAsc("id").page(new Page<>(1000, 10));
+                offsetCost[1] = Math.min(offsetCost[1], System.nanoTime() - begin);
 
-        Runnable task = () -> {
-            for (int i = 0; i < 100; i++) {
-                long id = redisIdWorkder.nextId("order");
-                System.out.println("id = " + id);
+                // 游标分页  不查总数
+                begin = System.nanoTime();
+                blogService.queryBlogOfUser(userId, 1, null);
+                keysetCost[0] = Math.min(keysetCost[0], System.nanoTime() - begin);
+                begin = System.nanoTime();
+                blogService.queryBlogOfUser(userId, 1, lastId);
+                keysetCost[1] = Math.min(keysetCost[1], System.nanoTime() - begin);
             }
-            latch.countDown();
-        };
+
+            System.out.printf("%6s %12s %12s%n", "page", "offset(us)", "keyset(us)");
+            System.out.printf("%6d %12d %12d%n", 1, offsetCost[0] / 1000, keysetCost[0] / 1000);
+            System.out.printf("%6d %12d %12d%n", 1000, offsetCost[1] / 1000, keysetCost[1] / 1000);
+            // 游标分页第 1000 页和第 1 页一样走索引定位  耗时不超过第 1 页的 3 倍
+            Assertions.assertTrue(keysetCost[1] <= keysetCost[0] * 3,
+                    "游标分页第 1000 页耗时 " + keysetCost[1] / 1000 + "us，第 1 页 " + keysetCost[0] / 1000 + "us");
+        } finally {
+            blogService.remove(blogService.query().eq("user_id", userId).getWrapper());
+        }
+    }
+
+
+    private static List<Long> blogIds(Object blogs) {
+        return ((List<?>) blogs).stream().map(blog -> ((Blog) blog).getId()).collect(Collectors.toList());
+    }
+
+    @Test
+    void benchmarkSeckillStockShards() throws InterruptedException, IOException {
+        // 一个不存在的优惠券，20000 个用户抢 10000 个库存，对比单个库存 key 和 8 个分片的吞吐
+        // 单个 key 执行的就是 seckill.lua，只把 stream.orders 换成一个临时的 stream，测试订单不会被消费者写进数据库
+        // 分片模式扣减成功后同样往这个临时 stream 发一条消息；两种方式都写入秒杀时间，脚本都要判断时间
+        long voucherId = 99999999L;
+        int users = 20000, stock = 10000, shards = 8;
+        String streamKey = "stream.orders.benchmark";
+        String source = StreamUtils.copyToString(
+                new ClassPathResource("seckill.lua").getInputStream(), StandardCharsets.UTF_8);
+        Assertions.assertTrue(source.contains("'stream.orders'"));
+        DefaultRedisScript<Long> singleScript = new DefaultRedisScript<>(
+                source.replace("'stream.orders'", "'" + streamKey + "'"), Long.class);
+        Map<String, String> window = new HashMap<>();
+        window.put("begin", String.valueOf(System.currentTimeMillis() - 3600 * 1000));
+        window.put("end", String.valueOf(System.currentTimeMillis() + 3600 * 1000));
+        List<String> keys = new ArrayList<>(Arrays.asList(RedisConstants.SECKILL_STOCK_KEY + voucherId,
+                RedisConstants.SECKILL_ORDER_KEY + voucherId, RedisConstants.SECKILL_VOUCHER_KEY + voucherId,
+                RedisConstants.SECKILL_SHARDS_KEY + voucherId, streamKey));
+        for (int i = 0; i < shards; i++) {
+            keys.add(RedisConstants.SECKILL_STOCK_KEY + "{" + voucherId + ":" + i + "}");
+            keys.add(RedisConstants.SECKILL_ORDER_KEY + "{" + voucherId + ":" + i + "}");
+            keys.add(RedisConstants.SECKILL_VOUCHER_KEY + "{" + voucherId + ":" + i + "}");
+        }
+        try {
+            // 单个 key
+            stringRedisTemplate.opsForValue().set(RedisConstants.SECKILL_STOCK_KEY + voucherId, String.valueOf(stock));
+            stringRedisTemplate.opsForHash().putAll(RedisConstants.SECKILL_VOUCHER_KEY + voucherId, window);
+            AtomicInteger singleSold = new AtomicInteger();
+            long singleCost = runConcurrently(users, userId -> {
+                Long r = stringRedisTemplate.execute(singleScript, Collections.emptyList(),
+                        String.valueOf(voucherId), String.valueOf(userId), String.valueOf(userId));
+                if (r != null && r == 0) {
+                    singleSold.incrementAndGet();
+                }
+            });
+
+            // 分片  同一个用户请求两次，第二次应该是重复下单
+            seckillStockShards.init(voucherId, stock, shards, window);
+            AtomicInteger shardSold = new AtomicInteger();
+            AtomicInteger duplicated = new AtomicInteger();
+            long shardCost = runConcurrently(users, userId -> {
+                if (seckillStockShards.tryOrder(voucherId, userId).getCode() == 0) {
+                    Map<String, String> order = new HashMap<>();
+                    order.put("userId", String.valueOf(userId));
+                    order.put("voucherId", String.valueOf(voucherId));
+                    order.put("id", String.valueOf(userId));
+                    stringRedisTemplate.opsForStream().add(streamKey, order);
+                    shardSold.incrementAndGet();
+                    if (seckillStockShards.tryOrder(voucherId, userId).getCode() == 2) {
+                        duplicated.incrementAndGet();
+                    }
+                }
+            });
+
+            System.out.printf("%8s %8s %10s %8s%n", "mode", "sold", "cost(ms)", "qps");
+            System.out.printf("%8s %8d %10d %8d%n", "single", singleSold.get(), singleCost, users * 1000L / singleCost);
+            System.out.printf("%8s %8d %10d %8d%n", "shards", shardSold.get(), shardCost, users * 1000L / shardCost);
+            Assertions.assertEquals(stock, singleSold.get());
+            Assertions.assertEquals(stock, shardSold.get());
+            Assertions.assertEquals(stock, duplicated.get());
+            Assertions.assertEquals(stock * 2L, stringRedisTemplate.opsForStream().size(streamKey));
+        } finally {
+            stringRedisTemplate.delete(keys);
+        }
+    }
+
+    // 用 es 里的线程并发执行 task(1) ~ task(n)，返回总耗时（毫秒）
+    private long runConcurrently(int n, LongConsumer task) throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(n);
         long begin = System.currentTimeMillis();
-        for (int i = 0; i < 300; i++) {
-            es.submit(task);
+        for (int i = 1; i <= n; i++) {
+            long userId = i;
+            es.submit(() -> {
+                try {
+                    task.accept(userId);
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+        return Math.max(1, System.currentTimeMillis() - begin);
+    }
+
+
+    @Test
+    void benchmarkIdWorker() throws InterruptedException {
+        // 300 个任务各生成 1000 个 ID，对比每个 ID 一次 INCR 和号段模式的吞吐，并检查没有重复的 ID
+        String prefix = "benchmark";
+        int tasks = 300, perTask = 1000;
+        int segmentSize = idProperties.getSegmentSize();
+        try {
+            System.out.printf("%10s %10s %10s%n", "segment", "cost(ms)", "qps");
+            for (int size : new int[]{1, 1000}) {
+                idProperties.setSegmentSize(size);
+                Set<Long> ids = ConcurrentHashMap.newKeySet();
+                long cost = runConcurrently(tasks, i -> {
+                    for (int j = 0; j < perTask; j++) {
+                        ids.add(redisIdWorkder.nextId(prefix));
+                    }
+                });
+                System.out.printf("%10d %10d %10d%n", size, cost, tasks * perTask * 1000L / cost);
+                Assertions.assertEquals(tasks * perTask, ids.size());
+            }
+        } finally {
+            idProperties.setSegmentSize(segmentSize);
+            Set<String> keys = stringRedisTemplate.keys("incr:" + prefix + ":*");
+            if (keys != null) {
+                stringRedisTemplate.delete(keys);
+            }
         }
-        latch.wait();
-        long end = System.currentTimeMillis();
-        System.out.println("time = " + (end - begin));
     }
 
 }
@@ -0,0 +1,134 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.Blog;
+import com.hmdp.entity.Shop;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 对比 JSON 和二进制编码的体积和编解码耗时  不依赖 Spring 容器，可以直接运行
+ */
+class CacheCodecBenchmarkTests {
+
+    private static final int WARM_UP = 10000;
+    private static final int ROUNDS = 50000;
+
+    @Test
+    void compareShop() {
+        Shop shop = new Shop()
+                .setId(1L)
+                .setName("103茶餐厅")
+                .setTypeId(1L)
+                .setImages("https://qcloud.dpfile.com/pc/jiclIsCKmOI2arxKN1Uf0Hx3PucIJH8q0QSz-Z8llzcN56-_QiKuOvyio1OOxsRtFoXqu0G3iT2T27qat3WhLVEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vfCF2ubeXzk49OsGrXt_KYDCngOyCwZK-s3fqawWswzk.jpg")
+                .setArea("大关")
+                .setAddress("金华路锦昌文华苑29号")
+                .setX(120.149192)
+                .setY(30.316078)
+                .setAvgPrice(80L)
+                .setSold(4215)
+                .setComments(3035)
+                .setScore(37)
+                .setOpenHours("10:00-22:00")
+                .setCreateTime(LocalDateTime.of(2021, 12, 22, 18, 10, 39))
+                .setUpdateTime(LocalDateTime.of(2022, 1, 13, 17, 32, 19));
+        compare(Shop.class, shop);
+    }
+
+    @Test
+    void compareBlog() {
+        Blog blog = new Blog();
+        blog.setId(4L);
+        blog.setShopId(4L);
+        blog.setUserId(2L);
+        blog.setTitle("无尽浪漫的夜晚丨在万花丛中摇晃着红酒杯🍷品战斧牛排🥩");
+        blog.setImages("/imgs/blogs/7/14/4771fefb-1a87-4252-816c-9f7ec41ffa4a.jpg,/imgs/blogs/4/10/2f07e3c9-ddce-482d-9ea7-c21450f8d7cd.jpg");
+        blog.setContent("生活就是一半烟火·一半诗意<br/>手执烟火谋生活·心怀诗意以谋爱·<br/>当然<br/>男朋友给不了的浪漫要学会自己给🍒");
+        blog.setLiked(16);
+        blog.setComments(104);
+        blog.setCreateTime(LocalDateTime.of(2021, 12, 28, 19, 50, 1));
+        blog.setUpdateTime(LocalDateTime.of(2022, 3, 10, 14, 26, 34));
+        compare(Blog.class, blog);
+    }
+
+    @Test
+    void compareUser() {
+        UserDTO user = new UserDTO();
+        user.setId(1010L);
+        user.setNickName("user_slxaxy2au9f3tanffaxr");
+        user.setIcon("/imgs/icons/kkjtbcr.jpg");
+        compare(UserDTO.class, user);
+    }
+
+    @Test
+    void readBothFormats() {
+        Shop shop = new Shop().setId(1L).setName("103茶餐厅").setScore(37)
+                .setCreateTime(LocalDateTime.of(2021, 12, 22, 18, 10, 39));
+        CacheCodec<Shop> json = CacheCodecs.of(Shop.class, CacheFormat.JSON);
+        CacheCodec<Shop> binary = CacheCodecs.of(Shop.class, CacheFormat.BINARY);
+
+        // 切换编码后，之前写入的另一种格式依然可以读出来
+        assertEquals(shop, binary.decode(json.encode(shop)));
+        assertEquals(shop, json.decode(binary.encode(shop)));
+
+        RedisData redisData = new RedisData();
+        redisData.setData(shop);
+        redisData.setExpireTime(LocalDateTime.of(2022, 1, 1, 0, 0, 0));
+        RedisData decoded = json.decodeLogical(binary.encodeLogical(redisData));
+        assertEquals(shop, decoded.getData());
+        assertEquals(redisData.getExpireTime(), decoded.getExpireTime());
+    }
+
+    private <T> void compare(Class<T> type, T value) {
+        CacheCodec<T> json = new JsonCacheCodec<>(type);
+        CacheCodec<T> binary = new BinaryCacheCodec<>(type);
+
+        byte[] jsonBytes = json.encode(value);
+        byte[] binaryBytes = binary.encode(value);
+        assertEquals(value, json.decode(jsonBytes));
+        assertEquals(value, binary.decode(binaryBytes));
+        assertTrue(binaryBytes.length < jsonBytes.length);
+
+        double jsonEncode = encodeNanos(json, value);
+        double binaryEncode = encodeNanos(binary, value);
+        double jsonDecode = decodeNanos(json, jsonBytes);
+        double binaryDecode = decodeNanos(binary, binaryBytes);
+
+        System.out.printf("%-8s %8s %12s %12s%n", type.getSimpleName(), "bytes", "encode ns/op", "decode ns/op");
+        System.out.printf("%-8s %8d %12.0f %12.0f%n", "json", jsonBytes.length, jsonEncode, jsonDecode);
+        System.out.printf("%-8s %8d %12.0f %12.0f%n", "binary", binaryBytes.length, binaryEncode, binaryDecode);
+    }
+
+    private static <T> double encodeNanos(CacheCodec<T> codec, T value) {
+        long sink = 0;
+        for (int i = 0; i < WARM_UP; i++) {
+            sink += codec.encode(value).length;
+        }
+        long begin = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            sink += codec.encode(value).length;
+        }
+        long cost = System.nanoTime() - begin;
+        // 使用结果  避免循环被 JIT 优化掉
+        assertTrue(sink > 0);
+        return (double) cost / ROUNDS;
+    }
+
+    private static <T> double decodeNanos(CacheCodec<T> codec, byte[] bytes) {
+        int sink = 0;
+        for (int i = 0; i < WARM_UP; i++) {
+            sink += codec.decode(bytes).hashCode();
+        }
+        long begin = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            sink += codec.decode(bytes).hashCode();
+        }
+        long cost = System.nanoTime() - begin;
+        assertTrue(sink != 1);
+        return (double) cost / ROUNDS;
+    }
+}
@@ -0,0 +1,119 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * 雪花算法的时钟回拨、租约过期、租约丢失后重新租用  Redis 用 mock 代替，时钟可控，不依赖 Spring 容器
+ */
+class SnowflakeIdWorkerTests {
+
+    private static final long START = 1735689600000L;
+
+    private final AtomicLong now = new AtomicLong(START);
+    private StringRedisTemplate stringRedisTemplate;
+    private ValueOperations<String, String> valueOperations;
+    private SnowflakeIdWorker worker;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        stringRedisTemplate = mock(StringRedisTemplate.class);
+        valueOperations = mock(ValueOperations.class);
+        when(stringRedisTemplate.opsForValue()).thenReturn(valueOperations);
+        when(valueOperations.setIfAbsent(anyString(), anyString(), anyLong(), eq(TimeUnit.SECONDS))).thenReturn(true);
+
+        worker = new SnowflakeIdWorker();
+        ReflectionTestUtils.setField(worker, "stringRedisTemplate", stringRedisTemplate);
+        worker.clock = now::get;
+        // 休眠就是把时钟往前拨
+        worker.sleeper = now::addAndGet;
+        ReflectionTestUtils.invokeMethod(worker, "init");
+    }
+
+    @Test
+    void waitsOutSmallRollback() {
+        long first = worker.nextId("order");
+        now.addAndGet(-5);
+
+        long second = worker.nextId("order");
+
+        assertTrue(second > first);
+        assertTrue(now.get() >= START, "应该等到时钟追上上一次的时间戳");
+    }
+
+    @Test
+    void rejectsLargeRollback() {
+        worker.nextId("order");
+        now.addAndGet(-6);
+
+        assertThrows(IllegalStateException.class, () -> worker.nextId("order"));
+    }
+
+    @Test
+    void refusesIdsAfterLeaseExpires() {
+        worker.nextId("order");
+        // 本地租约比 Redis 里的租约早一次续期间隔过期
+        now.addAndGet(TimeUnit.SECONDS.toMillis(RedisConstants.ID_WORKER_TTL) - 10000);
+
+        assertThrows(IllegalStateException.class, () -> worker.nextId("order"));
+    }
+
+    @Test
+    void renewExtendsLease() {
+        when(stringRedisTemplate.execute(any(RedisScript.class), anyList(), any(), any())).thenReturn(1L);
+        now.addAndGet(10000);
+        worker.renew();
+        now.addAndGet(15000);
+
+        worker.nextId("order");
+    }
+
+    @Test
+    void leasesNewWorkerIdAfterLeaseIsLost() {
+        long oldWorkerId = workerId(worker.nextId("order"));
+        // 租约被别的实例拿走了  续期失败，原来的机器号也租不回来
+        when(stringRedisTemplate.execute(any(RedisScript.class), anyList(), any(), any())).thenReturn(0L);
+        when(valueOperations.setIfAbsent(eq(RedisConstants.ID_WORKER_KEY + oldWorkerId), anyString(), anyLong(), eq(TimeUnit.SECONDS)))
+                .thenReturn(false);
+
+        worker.renew();
+        now.incrementAndGet();
+
+        assertNotEquals(oldWorkerId, workerId(worker.nextId("order")));
+    }
+
+    @Test
+    void idsAreUniqueWithinOneMillisecond() {
+        Set<Long> ids = new HashSet<>();
+        for (int i = 0; i < 4096; i++) {
+            ids.add(worker.nextId("order"));
+        }
+        assertEquals(4096, ids.size());
+    }
+
+    private static long workerId(long id) {
+        return (id >>> 12) & 1023;
+    }
+}